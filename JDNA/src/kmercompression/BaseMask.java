@@ -0,0 +1,234 @@
+package kmercompression;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * What the packed bases leave out of the input: runs of lowercase bases, and
+ * runs of characters other than A, C, T, G and N, which are packed as N.
+ * Both are kept as varint runs in input order, so the decompressor applies
+ * them with a cursor that only moves forward. Also records whether lowercase
+ * reference bases were matched as uppercase, so the copies of the reference
+ * are uppercased back.
+ *
+ * Copyright (c) 2014, Fernando Alves <falves@lasige.di.fc.ul.pt>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+class BaseMask {
+
+    private static final int REFERENCE_FOLDED = 1;
+    //
+    boolean referenceFolded;
+    //writing: runs as gap from the end of the last one, length, and the character
+    private final ByteArrayOutputStream lowerRuns = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream exceptionRuns = new ByteArrayOutputStream();
+    private long lowerCount;
+    private long exceptionCount;
+    private long lastLowerEnd;
+    private long lastExceptionEnd;
+    //the current runs; while writing, the ones still growing
+    private long lowerStart;
+    private long lowerEnd;
+    private long exceptionStart;
+    private long exceptionEnd;
+    private byte exception;
+    //reading
+    private ByteBuffer lowerIn;
+    private ByteBuffer exceptionIn;
+    private long lowerLeft;
+    private long exceptionLeft;
+    private byte[] scratch;
+
+    /**
+     * Marks the base at position as lowercase
+     */
+    void lower(long position) {
+        if (position != lowerEnd || lowerEnd == lowerStart) {
+            endLower();
+            lowerStart = position;
+        }
+        lowerEnd = position + 1;
+    }
+
+    /**
+     * Keeps c, packed as N, for the base at position
+     */
+    void exception(long position, char c) {
+        if (position != exceptionEnd || exception != (byte) c || exceptionEnd == exceptionStart) {
+            endException();
+            exceptionStart = position;
+            exception = (byte) c;
+        }
+        exceptionEnd = position + 1;
+    }
+
+    boolean isEmpty() {
+        return !referenceFolded && lowerCount == 0 && exceptionCount == 0 && lowerEnd == lowerStart
+                && exceptionEnd == exceptionStart;
+    }
+
+    byte[] toBytes() {
+        endLower();
+        endException();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(referenceFolded ? REFERENCE_FOLDED : 0);
+        FastaLayout.writeVarint(out, lowerCount);
+        out.write(lowerRuns.toByteArray(), 0, lowerRuns.size());
+        FastaLayout.writeVarint(out, exceptionCount);
+        out.write(exceptionRuns.toByteArray(), 0, exceptionRuns.size());
+        return out.toByteArray();
+    }
+
+    static BaseMask read(ByteBuffer in) {
+        BaseMask mask = new BaseMask();
+        mask.referenceFolded = (in.get() & REFERENCE_FOLDED) != 0;
+        mask.lowerLeft = FastaLayout.readVarint(in);
+        mask.lowerIn = in.slice();
+        //skip to the exception runs
+        for (long i = 0; i < mask.lowerLeft; i++) {
+            FastaLayout.readVarint(in);
+            FastaLayout.readVarint(in);
+        }
+        mask.exceptionLeft = FastaLayout.readVarint(in);
+        mask.exceptionIn = in.slice();
+        mask.nextLower();
+        mask.nextException();
+        return mask;
+    }
+
+    /**
+     * Whether the mask changes any of the length bases from output position
+     * on, which never goes back between calls
+     */
+    boolean changes(long position, int length) {
+        long end = position + length;
+        skipTo(position);
+        return referenceFolded || lowerStart < end || exceptionStart < end;
+    }
+
+    /**
+     * Applies the mask to the bases starting at output position, which never
+     * goes back between calls. Changed bases are copied, so callers keep
+     * bases short.
+     * @return bases, or a changed copy of them
+     */
+    ByteBuffer apply(ByteBuffer bases, long position) {
+        int length = bases.remaining();
+        long end = position + length;
+        if (!changes(position, length)) {
+            return bases;
+        }
+
+        if (scratch == null || scratch.length < length) {
+            scratch = new byte[Math.max(length, 1 << 12)];
+        }
+        bases.get(scratch, 0, length);
+        if (referenceFolded) {
+            //only A, C, T and G are copied from the reference, any of them may be lowercase
+            for (int i = 0; i < length; i++) {
+                scratch[i] &= ~0x20;
+            }
+        }
+        while (lowerStart < end) {
+            int from = (int) (Math.max(lowerStart, position) - position);
+            int to = (int) (Math.min(lowerEnd, end) - position);
+            for (int i = from; i < to; i++) {
+                scratch[i] |= 0x20;
+            }
+            if (lowerEnd > end) {
+                break;
+            }
+            nextLower();
+        }
+        while (exceptionStart < end) {
+            int from = (int) (Math.max(exceptionStart, position) - position);
+            int to = (int) (Math.min(exceptionEnd, end) - position);
+            for (int i = from; i < to; i++) {
+                scratch[i] = exception;
+            }
+            if (exceptionEnd > end) {
+                break;
+            }
+            nextException();
+        }
+        return ByteBuffer.wrap(scratch, 0, length);
+    }
+
+    private void skipTo(long position) {
+        while (lowerEnd <= position) {
+            nextLower();
+        }
+        while (exceptionEnd <= position) {
+            nextException();
+        }
+    }
+
+    private void endLower() {
+        if (lowerEnd > lowerStart) {
+            FastaLayout.writeVarint(lowerRuns, lowerStart - lastLowerEnd);
+            FastaLayout.writeVarint(lowerRuns, lowerEnd - lowerStart);
+            lastLowerEnd = lowerEnd;
+            lowerCount++;
+            lowerStart = lowerEnd;
+        }
+    }
+
+    private void endException() {
+        if (exceptionEnd > exceptionStart) {
+            FastaLayout.writeVarint(exceptionRuns, exceptionStart - lastExceptionEnd);
+            FastaLayout.writeVarint(exceptionRuns, exceptionEnd - exceptionStart);
+            exceptionRuns.write(exception);
+            lastExceptionEnd = exceptionEnd;
+            exceptionCount++;
+            exceptionStart = exceptionEnd;
+        }
+    }
+
+    /**
+     * Reads the next lowercase run; past the last one, the run is empty and
+     * starts after any position
+     */
+    private void nextLower() {
+        if (lowerLeft-- > 0) {
+            lowerStart = lowerEnd + FastaLayout.readVarint(lowerIn);
+            lowerEnd = lowerStart + FastaLayout.readVarint(lowerIn);
+        } else {
+            lowerStart = Long.MAX_VALUE;
+            lowerEnd = Long.MAX_VALUE;
+        }
+    }
+
+    private void nextException() {
+        if (exceptionLeft-- > 0) {
+            exceptionStart = exceptionEnd + FastaLayout.readVarint(exceptionIn);
+            exceptionEnd = exceptionStart + FastaLayout.readVarint(exceptionIn);
+            exception = exceptionIn.get();
+        } else {
+            exceptionStart = Long.MAX_VALUE;
+            exceptionEnd = Long.MAX_VALUE;
+        }
+    }
+}
@@ -10,6 +10,10 @@ import java.io.*;
  * that are constructed from a File support <code>reset()</code>. However,
  * if constructed from an <code>InputStream</code> an object cannot be reset.
  * <P>
+ * Bits are kept in a 64-bit accumulator refilled from a byte buffer, which
+ * is itself filled from the underlying stream in bulk. <code>peek</code> and
+ * <code>skipBits</code> let a decoder look at a token before consuming it.
+ * <P>
  * Any exceptions generated are rethrown as <code>RuntimeException</code> objects
  * so client code does not have to catch or rethrow them. (Unless the extension
  * of <code>InputStream</code> requires throwing as another type of exception, e.g.,
@@ -24,18 +28,15 @@ public class BitInputStream extends InputStream
 {
     private InputStream     myInput;
     private int             myBitCount;
-    private int             myBuffer;
+    private long            myBuffer;
     private File            myFile;
-    
-    private static final int bmask[] = {
-        0x00, 0x01, 0x03, 0x07, 0x0f, 0x1f, 0x3f, 0x7f, 0xff,
-        0x1ff,0x3ff,0x7ff,0xfff,0x1fff,0x3fff,0x7fff,0xffff,
-        0x1ffff,0x3ffff,0x7ffff,0xfffff,0x1fffff,0x3fffff,
-        0x7fffff,0xffffff,0x1ffffff,0x3ffffff,0x7ffffff,
-        0xfffffff,0x1fffffff,0x3fffffff,0x7fffffff,0xffffffff
-    };
+    private final byte[]    myBytes = new byte[BYTES_SIZE];
+    private int             myBytePos;
+    private int             myByteLimit;
 
     private static final int BITS_PER_BYTE = 8;
+    private static final int BITS_PER_LONG = 64;
+    private static final int BYTES_SIZE = 1 << 16;
     /**
      * Construct a bit-at-a-time input stream from a file whose
      * name is supplied. 
@@ -100,7 +101,8 @@ public class BitInputStream extends InputStream
         catch (FileNotFoundException fnf){
             System.err.println("error opening " + myFile.getName() + " " + fnf);
         }
-        myBuffer = myBitCount = 0;
+        myBuffer = 0;
+        myBitCount = myBytePos = myByteLimit = 0;
     } 
 
     /**
@@ -132,31 +134,69 @@ public class BitInputStream extends InputStream
 
     public int read(int howManyBits) throws IOException
     {
-        int retval = 0;
-        if (myInput == null){
-            return -1;
-        }
-        
-        while (howManyBits > myBitCount){
-            retval |= ( myBuffer << (howManyBits - myBitCount) );
-            howManyBits -= myBitCount;
-            try{
-                if ( (myBuffer = myInput.read()) == -1) {
-                    return -1;
-                }
+        if (howManyBits > myBitCount){
+            fill();
+            if (howManyBits > myBitCount){
+                return -1;
             }
-            catch (IOException ioe) {
-                throw new IOException("bitreading trouble "+ioe);
+        }
+        myBitCount -= howManyBits;
+        return (int) ((myBuffer >>> myBitCount) & ((1L << howManyBits) - 1));
+    }
+
+    /**
+     * Returns the next <code>howManyBits</code> bits without consuming them.
+     * Past the end of the stream the missing bits read as 0.
+     * @param howManyBits is the number of bits to look at, at most 32
+     * @return the bits, only rightmost <code>howManyBits</code> are valid
+     */
+    public int peek(int howManyBits) throws IOException
+    {
+        if (howManyBits > myBitCount){
+            fill();
+            if (howManyBits > myBitCount){
+                return (int) ((myBuffer << (howManyBits - myBitCount)) & ((1L << howManyBits) - 1));
             }
-            myBitCount = BITS_PER_BYTE;
         }
+        return (int) ((myBuffer >>> (myBitCount - howManyBits)) & ((1L << howManyBits) - 1));
+    }
 
-        if (howManyBits > 0){
-            retval |= myBuffer >> (myBitCount - howManyBits);
-            myBuffer &= bmask[myBitCount - howManyBits];
-            myBitCount -= howManyBits;
+    /**
+     * Consumes bits already looked at with <code>peek</code>.
+     * @param howManyBits is the number of bits to consume
+     */
+    public void skipBits(int howManyBits)
+    {
+        myBitCount -= howManyBits;
+    }
+
+    /**
+     * Moves whole bytes into the accumulator until it is nearly full,
+     * refilling the byte buffer from the stream when it runs out.
+     */
+    private void fill() throws IOException
+    {
+        if (myInput == null){
+            return;
+        }
+        while (myBitCount <= BITS_PER_LONG - BITS_PER_BYTE){
+            if (myBytePos == myByteLimit){
+                int n;
+                try{
+                    n = myInput.read(myBytes, 0, myBytes.length);
+                }
+                catch (IOException ioe) {
+                    throw new IOException("bitreading trouble "+ioe);
+                }
+                if (n <= 0){
+                    return;
+                }
+                myBytePos = 0;
+                myByteLimit = n;
+            }
+            myBuffer = (myBuffer << BITS_PER_BYTE) | (myBytes[myBytePos++] & 0xff);
+            myBitCount += BITS_PER_BYTE;
         }
-        return retval;
     }
 
     /**
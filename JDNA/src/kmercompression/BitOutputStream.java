@@ -9,6 +9,9 @@ package kmercompression;
  * <P>
  * Updated for version 2.0 to extend java.io.OutputStream
  * <P>
+ * Bits are packed into a 64-bit accumulator whose whole bytes are spilled
+ * into a byte buffer, and the buffer goes to the underlying stream in bulk.
+ * <P>
  * Any exceptions generated are rethrown as <code>RuntimeException</code> objects
  * so client code does not have to catch or rethrow them.
  * <P>
@@ -24,26 +27,22 @@ public class BitOutputStream extends OutputStream
     
 
     private OutputStream  myOutput;
-    private int           myBuffer;
-    private int           myBitsToGo;
-    
-    private static final int bmask[] = {
-        0x00, 0x01, 0x03, 0x07, 0x0f, 0x1f, 0x3f, 0x7f, 0xff,
-        0x1ff,0x3ff,0x7ff,0xfff,0x1fff,0x3fff,0x7fff,0xffff,
-        0x1ffff,0x3ffff,0x7ffff,0xfffff,0x1fffff,0x3fffff,
-        0x7fffff,0xffffff,0x1ffffff,0x3ffffff,0x7ffffff,
-        0xfffffff,0x1fffffff,0x3fffffff,0x7fffffff,0xffffffff
-    };
+    private long          myBuffer;
+    private int           myBitCount;
+    private final byte[]  myBytes = new byte[BYTES_SIZE];
+    private int           myBytePos;
 
     private static final int BITS_PER_BYTE = 8;
+    private static final int BITS_PER_LONG = 64;
+    private static final int BYTES_SIZE = 1 << 16;
 
     /**
      * Required by OutputStream subclasses, write the low
-     * 8-bits to the underlying outputstream
+     * 8-bits as the next 8 bits of the stream
      */
     @Override
-    public void write(int b) throws IOException {
-        myOutput.write(b);
+    public void write(int b) {
+        write(BITS_PER_BYTE, b);
     }
     
     /**
@@ -58,7 +57,8 @@ public class BitOutputStream extends OutputStream
     
     private void initialize(){
         myBuffer = 0;
-        myBitsToGo = BITS_PER_BYTE;
+        myBitCount = 0;
+        myBytePos = 0;
     }
     /**
      * Construct a bit-at-a-time output stream with specified file
@@ -90,18 +90,15 @@ public class BitOutputStream extends OutputStream
     @Override
     public void flush()
     {
-        if (myBitsToGo != BITS_PER_BYTE) {
-            try{
-                write( (myBuffer << myBitsToGo) );
-            }
-            catch (java.io.IOException ioe){
-                throw new RuntimeException("error writing bits on flush " + ioe);
-            }
+        spill();
+        if (myBitCount > 0) {
+            put((byte) (myBuffer << (BITS_PER_BYTE - myBitCount)));
             myBuffer = 0;
-            myBitsToGo = BITS_PER_BYTE;
+            myBitCount = 0;
         }
-                
+
         try{
+            drain();
             myOutput.flush();    
         }
         catch (java.io.IOException ioe){
@@ -135,27 +132,41 @@ public class BitOutputStream extends OutputStream
      */
     public void write(int howManyBits, int value)
     {
-        value &= bmask[howManyBits];  // only right most bits valid
+        if (myBitCount + howManyBits > BITS_PER_LONG) {
+            spill();
+        }
+        // only right most bits valid
+        myBuffer = (myBuffer << howManyBits) | (value & ((1L << howManyBits) - 1));
+        myBitCount += howManyBits;
+    }
+
+    /**
+     * Moves the whole bytes of the accumulator into the byte buffer
+     */
+    private void spill()
+    {
+        while (myBitCount >= BITS_PER_BYTE) {
+            myBitCount -= BITS_PER_BYTE;
+            put((byte) (myBuffer >>> myBitCount));
+        }
+    }
 
-        while (howManyBits >= myBitsToGo){
-            myBuffer = (myBuffer << myBitsToGo) |
-                       (value >> (howManyBits - myBitsToGo));
+    private void put(byte b)
+    {
+        if (myBytePos == myBytes.length) {
             try{
-                write(myBuffer);    
+                drain();
             }
             catch (java.io.IOException ioe){
                 throw new RuntimeException("error writing bits " + ioe);
             }
-
-            value &= bmask[howManyBits - myBitsToGo];
-            howManyBits -= myBitsToGo;
-            myBitsToGo = BITS_PER_BYTE;
-            myBuffer = 0;
-        }
-        
-        if (howManyBits > 0) {
-            myBuffer = (myBuffer << howManyBits) | value;
-            myBitsToGo -= howManyBits;
         }
+        myBytes[myBytePos++] = b;
+    }
+
+    private void drain() throws IOException
+    {
+        myOutput.write(myBytes, 0, myBytePos);
+        myBytePos = 0;
     }
 }
@@ -0,0 +1,67 @@
+package kmercompression;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Independently decodable piece of a compressed file. Decoding starts at
+ * refIndex inside reference block block and produces the bases of the input
+ * from outputOffset on.
+ *
+ * Copyright (c) 2014, Fernando Alves <falves@lasige.di.fc.ul.pt>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+class Chunk {
+
+    final int block;
+    final int refIndex;
+    final long outputOffset;
+    final int bases;
+    //position of the chunk header in the compressed file, -1 while in memory
+    long fileOffset;
+    int payloadLength;
+    byte[] payload;
+
+    Chunk(int block, int refIndex, long outputOffset, int bases) {
+        this.block = block;
+        this.refIndex = refIndex;
+        this.outputOffset = outputOffset;
+        this.bases = bases;
+        fileOffset = -1;
+    }
+
+    boolean overlaps(long start, long end) {
+        return outputOffset < end && outputOffset + bases > start;
+    }
+
+    /**
+     * Stream over the bit stream of this chunk, coded with codec
+     */
+    InputStream decode(Codec codec) throws IOException {
+        return codec.input(new ByteArrayInputStream(payload, 0, payloadLength));
+    }
+}
@@ -0,0 +1,297 @@
+package kmercompression;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Entropy coder applied to the bit stream of every chunk. The codec of a
+ * container is recorded in its header:
+ * none - the bits are stored as they are, for the fastest transfers;
+ * deflate-N - zlib deflate at level N (0-9);
+ * range - adaptive range coder, predicting each byte from the one before;
+ * adaptive - range codes the tokens themselves with a TokenModel, in place
+ * of the fixed bit codes.
+ *
+ * Copyright (c) 2014, Fernando Alves <falves@lasige.di.fc.ul.pt>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+abstract class Codec {
+
+    static final int NONE = 0;
+    static final int DEFLATE = 1;
+    static final int RANGE = 2;
+    //chunks of version 1 containers, only ever read
+    static final int GZIP = 3;
+    static final int ADAPTIVE = 4;
+    //the level GZIPOutputStream uses
+    static final int DEFAULT_LEVEL = 6;
+    //
+    final int id;
+    final int level;
+
+    private Codec(int id, int level) {
+        this.id = id;
+        this.level = level;
+    }
+
+    /**
+     * Stream that codes everything written to it into out. Closing it also
+     * closes out.
+     */
+    abstract OutputStream output(OutputStream out) throws IOException;
+
+    abstract InputStream input(InputStream in) throws IOException;
+
+    /**
+     * True if chunks hold range coded tokens rather than a bit stream
+     */
+    boolean codesTokens() {
+        return id == ADAPTIVE;
+    }
+
+    /**
+     * Parses none, deflate, deflate-N, range or adaptive
+     */
+    static Codec forName(String name) {
+        String[] parts = name.trim().toLowerCase().split("-");
+        switch (parts[0]) {
+            case "none":
+                return get(NONE, 0);
+            case "deflate":
+                return get(DEFLATE, parts.length > 1 ? Integer.parseInt(parts[1]) : DEFAULT_LEVEL);
+            case "range":
+                return get(RANGE, 0);
+            case "adaptive":
+                return get(ADAPTIVE, 0);
+            default:
+                throw new IllegalArgumentException("unknown codec " + name);
+        }
+    }
+
+    static Codec get(int id, int level) {
+        switch (id) {
+            case NONE:
+                return new Codec(NONE, 0) {
+                    @Override
+                    OutputStream output(OutputStream out) {
+                        return out;
+                    }
+
+                    @Override
+                    InputStream input(InputStream in) {
+                        return in;
+                    }
+                };
+            case DEFLATE:
+                if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+                    throw new IllegalArgumentException("deflate level must be between 0 and 9");
+                }
+                return new Codec(DEFLATE, level) {
+                    @Override
+                    OutputStream output(OutputStream out) {
+                        final Deflater deflater = new Deflater(this.level);
+                        return new DeflaterOutputStream(out, deflater, JDNA.ONEMB / 16) {
+                            @Override
+                            public void close() throws IOException {
+                                super.close();
+                                deflater.end();
+                            }
+                        };
+                    }
+
+                    @Override
+                    InputStream input(InputStream in) {
+                        final Inflater inflater = new Inflater();
+                        return new InflaterInputStream(in, inflater, JDNA.ONEMB / 16) {
+                            @Override
+                            public void close() throws IOException {
+                                super.close();
+                                inflater.end();
+                            }
+                        };
+                    }
+                };
+            case RANGE:
+                return new Codec(RANGE, 0) {
+                    @Override
+                    OutputStream output(OutputStream out) {
+                        return new RangeOutputStream(out);
+                    }
+
+                    @Override
+                    InputStream input(InputStream in) throws IOException {
+                        return new RangeInputStream(in);
+                    }
+                };
+            case ADAPTIVE:
+                //the range coder is driven by the writer and the decoder
+                return new Codec(ADAPTIVE, 0) {
+                    @Override
+                    OutputStream output(OutputStream out) {
+                        return out;
+                    }
+
+                    @Override
+                    InputStream input(InputStream in) {
+                        return in;
+                    }
+                };
+            case GZIP:
+                return new Codec(GZIP, 0) {
+                    @Override
+                    OutputStream output(OutputStream out) throws IOException {
+                        throw new IOException("GZIP chunks are only read");
+                    }
+
+                    @Override
+                    InputStream input(InputStream in) throws IOException {
+                        return new GZIPInputStream(in, JDNA.ONEMB / 16);
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("unknown codec " + id);
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch (id) {
+            case NONE:
+                return "none";
+            case DEFLATE:
+                return "deflate-" + level;
+            case RANGE:
+                return "range";
+            case ADAPTIVE:
+                return "adaptive";
+            default:
+                return "gzip";
+        }
+    }
+
+    //contexts: the previous byte, then the bits of the current one seen so far
+    private static final int BYTE_CONTEXTS = 256 * 256;
+
+    /**
+     * Range codes every byte in the context of the previous one. Each byte is
+     * preceded by a flag bit, cleared at the end of the stream.
+     */
+    private static class RangeOutputStream extends FilterOutputStream {
+
+        private final RangeEncoder encoder;
+        private final short[] bytes;
+        private final short[] more;
+        private int previous;
+
+        RangeOutputStream(OutputStream out) {
+            super(out);
+            encoder = new RangeEncoder(out);
+            bytes = RangeEncoder.model(BYTE_CONTEXTS);
+            more = RangeEncoder.model(1);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            encoder.encodeBit(more, 0, 1);
+            encoder.encodeTree(bytes, previous << 8, 8, b & 0xFF);
+            previous = b & 0xFF;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            encoder.encodeBit(more, 0, 0);
+            encoder.finish();
+            super.close();
+        }
+    }
+
+    private static class RangeInputStream extends FilterInputStream {
+
+        private final RangeDecoder decoder;
+        private final short[] bytes;
+        private final short[] more;
+        private int previous;
+        private boolean done;
+
+        RangeInputStream(InputStream in) throws IOException {
+            super(in);
+            decoder = new RangeDecoder(in);
+            bytes = RangeEncoder.model(BYTE_CONTEXTS);
+            more = RangeEncoder.model(1);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (done || decoder.decodeBit(more, 0) == 0) {
+                done = true;
+                return -1;
+            }
+            previous = decoder.decodeTree(bytes, previous << 8, 8);
+            return previous;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            for (int i = 0; i < len; i++) {
+                int c = read();
+                if (c == -1) {
+                    return i == 0 ? -1 : i;
+                }
+                b[off + i] = (byte) c;
+            }
+            return len;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long i = 0;
+            while (i < n && read() != -1) {
+                i++;
+            }
+            return i;
+        }
+
+        @Override
+        public int available() {
+            return 0;
+        }
+    }
+}
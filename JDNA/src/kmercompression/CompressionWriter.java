@@ -1,6 +1,10 @@
 package kmercompression;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  *
@@ -32,11 +36,23 @@ import java.util.ArrayList;
  */
 class CompressionWriter {
 
-    private final BitOutputStream bos;
+    private BitOutputStream bos;
+    private ByteArrayOutputStream memory;
+    //with the adaptive codec, tokens go to a range coder instead of bos
+    private RangeEncoder encoder;
+    private TokenModel model;
     private final int maxBits;
     //
-    private final ArrayList<Character> characters;
-    private final ArrayList<Integer> nPositions;
+    //pending characters: their token, and for N the run length (0 for a single N)
+    private byte[] tokens;
+    private int[] runs;
+    private int pending;
+    //
+    private final int block;
+    private final long inputOffset;
+    private final List<Chunk> chunks;
+    private int chunkReference;
+    private int chunkStart;
     //
     private static final byte AA = 0x0;
     private static final byte CC = 0x1;
@@ -56,31 +72,74 @@ class CompressionWriter {
     private static final int _496 = 496;
     private static final int _1008 = 1008;
     private static final int _2032 = 2032;
+    private static final int INITIAL_PENDING = 1024;
 
-    CompressionWriter(BitOutputStream b, int m) {
-        bos = b;
+    /**
+     * Creates a writer for reference block b, whose input starts at offset in
+     * the whole input. The writer cuts its output into chunks, see startChunk().
+     */
+    CompressionWriter(int m, int b, long offset) {
         maxBits = m;
-        characters = new ArrayList<>();
-        nPositions = new ArrayList<>();
+        block = b;
+        inputOffset = offset;
+        chunks = new ArrayList<>();
+        tokens = new byte[INITIAL_PENDING];
+        runs = new int[INITIAL_PENDING];
     }
 
     void writeChar(char c){
-        characters.add(c);
-        if(c == 'N' || c == 'n'){
-            characters.add('-');
+        switch (c) {
+            case 'A':
+                add(AA, 0);
+                break;
+            case 'C':
+                add(CC, 0);
+                break;
+            case 'T':
+                add(TT, 0);
+                break;
+            case 'G':
+                add(GG, 0);
+                break;
+            case 'N':
+            case 'n':
+                add(NN, 0);
+                break;
+            case '\n':
+            case '\r':
+                System.err.println("endline found");
+                break;
+            default:
+                //other characters are packed as N, the case mask keeps them
+                add(NN, 0);
         }
     }
-    
+
+    /**
+     * Writes a run of pos N characters
+     */
     void writeChar(char c, int pos) {
-        characters.add(c);
-        characters.add('+');
-        nPositions.add(pos);
+        add(NN, pos);
+    }
+
+    private void add(byte token, int run) {
+        if (pending == tokens.length) {
+            tokens = Arrays.copyOf(tokens, pending * 2);
+            runs = Arrays.copyOf(runs, pending * 2);
+        }
+        tokens[pending] = token;
+        runs[pending] = run;
+        pending++;
     }
 
-    void writeAll(int difference, int matchSize) {
+    void writeAll(int difference, int matchSize) throws IOException {
         writeCharSequence();
-        writeIndexAdjustment(difference);
-        writeMatch(matchSize);
+        if (encoder != null) {
+            model.encodeMatch(encoder, difference, matchSize);
+        } else {
+            writeIndexAdjustment(difference);
+            writeMatch(matchSize);
+        }
     }
 
     private void writeMatch(int value) {
@@ -144,87 +203,144 @@ class CompressionWriter {
         }
     }
 
-    private void writeCharSequence() {
-        if (!characters.isEmpty()) {
-            if (characters.size() > 1) {
+    private void writeCharSequence() throws IOException {
+        if (encoder != null) {
+            writeTokens();
+        } else if (pending > 0) {
+            //a lone N is wrapped in a sequence too
+            boolean sequence = pending > 1 || tokens[0] == NN;
+            if (sequence) {
                 bos.write(Compressor.CHAR_SIZE, charseq);
             }
-            for (int i = 0; i < characters.size(); i++) {
-                char c = characters.get(i);
-
-                switch (c) {
-                    case 'A': //0
-                        bos.write(Compressor.CHAR_SIZE, AA);
-                        break;
-                    case 'C': //1
-                        bos.write(Compressor.CHAR_SIZE, CC);
-                        break;
-                    case 'T': //2
-                        bos.write(Compressor.CHAR_SIZE, TT);
-                        break;
-                    case 'G': //3
-                        bos.write(Compressor.CHAR_SIZE, GG);
-                        break;
-                    case '+': //5
-                        // empty
-                        break;
-                    case '&': //6
-                        bos.write(Compressor.CHAR_SIZE, change);
-                        break;
-                    case '#': //7 -> termination
-                        bos.write(Compressor.CHAR_SIZE, CARDINAL);
-                        break;
-                    default: //4  -> N and default
-                        if (c == 'N' || c == 'n') {
-                            if(characters.get(i+1) == '-'){
-                                bos.write(3, NN);
-                                bos.write(1, 0);
-                            }else {
-                                bos.write(3, NN);
-                                bos.write(1, 1);
-
-                               bos.write(maxBits, nPositions.remove(0));
-                                
-                            }
-                            
-                            i++;
-                        } else {
-                            if (c == '\n' || c == '\r') {
-                                System.err.println("endline found");
-                            } else {
-                                System.err.println("Character: \"" + c + "\"; replaced with 'N'.");
-                                bos.write(3, NN);
-                                bos.write(1, 0);
-                            }
-                        }
-                        break;
+            for (int i = 0; i < pending; i++) {
+                bos.write(Compressor.CHAR_SIZE, tokens[i]);
+                if (tokens[i] == NN) {
+                    if (runs[i] == 0) {
+                        bos.write(1, 0);
+                    } else {
+                        bos.write(1, 1);
+                        bos.write(maxBits, runs[i]);
+                    }
                 }
             }
-            if (characters.size() > 1) {
+            if (sequence) {
                 bos.write(Compressor.CHAR_SIZE, charseq);
             }
-            characters.clear();
-        }else{
+            pending = 0;
+        } else {
             bos.write(Compressor.CHAR_SIZE, charseq);
             bos.write(Compressor.CHAR_SIZE, charseq);
         }
     }
 
-    void writeChange() {
-        writeChar('&');
+    /**
+     * Range codes the pending characters, closed by END unless they end the chunk
+     */
+    private void writeTokens() throws IOException {
+        for (int i = 0; i < pending; i++) {
+            model.encodeLiteral(encoder, tokens[i], runs[i]);
+        }
+        if (pending == 0 || tokens[pending - 1] < change) {
+            model.encodeLiteral(encoder, TokenModel.END, 0);
+        }
+        pending = 0;
+    }
+
+    private void writeChange() throws IOException {
+        add(change, 0);
         writeCharSequence();
     }
 
-    void writeTermination() {
-        writeChar('#');
+    private void writeTermination() throws IOException {
+        add(CARDINAL, 0);
         writeCharSequence();
     }
 
-    void flush() {
-        bos.flush();
+    /**
+     * Starts a chunk at input position inputStart of the block, where the
+     * reference index is refIndex. A decoder can start from there with no
+     * other state, so this must only be called before a match.
+     */
+    void startChunk(int refIndex, int inputStart) throws IOException {
+        memory = new ByteArrayOutputStream();
+        if (JDNA.CODEC.codesTokens()) {
+            encoder = new RangeEncoder(memory);
+            model = new TokenModel(maxBits, JDNA.KMER_SIZE);
+        } else {
+            bos = new BitOutputStream(JDNA.CODEC.output(memory));
+        }
+        chunkReference = refIndex;
+        chunkStart = inputStart;
     }
 
-    void close() {
-        bos.close();
+    /**
+     * Ends the current chunk at input position inputEnd of the block
+     * @param last true if nothing else follows in the whole input
+     */
+    void endChunk(int inputEnd, boolean last) throws IOException {
+        if (last) {
+            writeTermination();
+        } else {
+            writeChange();
+        }
+        if (encoder != null) {
+            encoder.finish();
+        } else {
+            bos.close();
+        }
+
+        Chunk chunk = new Chunk(block, chunkReference, inputOffset + chunkStart, inputEnd - chunkStart);
+        chunk.payload = memory.toByteArray();
+        chunk.payloadLength = chunk.payload.length;
+        chunks.add(chunk);
+        memory = null;
+        bos = null;
+        encoder = null;
+        model = null;
+    }
+
+    int chunkStart() {
+        return chunkStart;
+    }
+
+    List<Chunk> chunks() {
+        return chunks;
+    }
+
+    /**
+     * Creates a writer for the same block as this one
+     */
+    CompressionWriter fork() {
+        return new CompressionWriter(maxBits, block, inputOffset);
+    }
+
+    /**
+     * Hands the chunks of this writer over to target, which then continues
+     * where this writer stands. Target must not have a chunk open.
+     */
+    void appendTo(CompressionWriter target) {
+        target.chunks.addAll(chunks);
+        chunks.clear();
+
+        target.memory = memory;
+        target.bos = bos;
+        target.encoder = encoder;
+        target.model = model;
+        target.chunkReference = chunkReference;
+        target.chunkStart = chunkStart;
+        memory = null;
+        bos = null;
+        encoder = null;
+        model = null;
+
+        //target has nothing pending, so the buffers can simply be swapped
+        byte[] t = target.tokens;
+        int[] r = target.runs;
+        target.tokens = tokens;
+        target.runs = runs;
+        target.pending = pending;
+        tokens = t;
+        runs = r;
+        pending = 0;
     }
 }
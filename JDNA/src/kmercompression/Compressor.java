@@ -1,6 +1,15 @@
 package kmercompression;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  *
@@ -34,87 +43,175 @@ class Compressor {
 
     private static final int INPUT_MATCH_POSITION = 0;
     private static final int REFERNECE_MATCH_POSITION = 1;
+    //smallest input a segment is worth splitting off for
+    private static final int MIN_SEGMENT = 1 << 16;
+    //reference bases indexed on each side of a split point to find its anchor
+    private static final int ANCHOR_WINDOW = 1 << 15;
+    //input bases scanned after a split point before giving up on an anchor
+    private static final int ANCHOR_SEARCH = 1 << 14;
+    //shortest N run written as a run, a run token costs about as much as this many lone N
+    private static final int MIN_N_RUN = 8;
+    //matches are looked for within the block size over this of the input position
+    private static final int BLOCK_SIZE_RATIO = 100;
     //
+    //k-mer table of every block, unless the tables come from segmentPool
     private final KmerTable structure;
+    private final SegmentPool segmentPool;
     //
     static final int CHAR_SIZE = 3;
     private final int blockSize;
     private int refLength;
-    private int inpLength;
+    private int maxWindow;
+    //persistent index of the current reference block, if there is one
+    private ReferenceIndex.Block indexBlock;
     //
-    final char[] reference;
-    char[] input;
-    //
-    private final int[] getResult;
+    PackedSequence reference;
+    PackedSequence input;
     //
     long ts, te;
 
-    Compressor(int bs) {
+    /**
+     * @param segmentPool if not null, every block is split into JDNA.SEGMENTS
+     * input segments compressed in parallel on this pool, with the k-mer
+     * tables it shares between its compressors
+     */
+    Compressor(int bs, SegmentPool segmentPool) {
+        this(bs, segmentPool, new PackedSequence(bs));
+    }
+
+    /**
+     * @param reference reference block buffer, which compressors working on
+     * the same block can share since they only read it
+     */
+    Compressor(int bs, SegmentPool segmentPool, PackedSequence reference) {
         blockSize = bs;
-        structure = new KmerTable();
-        getResult = new int[2];
-        reference = new char[blockSize];
-        input = new char[blockSize];
+        this.segmentPool = segmentPool;
+        structure = segmentPool == null ? new KmerTable() : null;
+        this.reference = reference;
+        input = new PackedSequence(blockSize);
+    }
+
+    /**
+     * Compresses the blocks read into reference and input from now on, for
+     * buffers that go from compressor to compressor
+     */
+    void use(PackedSequence reference, PackedSequence input) {
+        this.reference = reference;
+        this.input = input;
+    }
+
+    /**
+     * @param block index of the reference block just read, or null to index
+     * it on demand
+     */
+    void init(int readSize, ReferenceIndex.Block block) {
+        init(readSize, block, blockSize);
     }
 
-    void init(int readSize) {
+    /**
+     * @param inputBlockSize block size of the input, when it is smaller than
+     * the one of this compressor
+     */
+    void init(int readSize, ReferenceIndex.Block block, int inputBlockSize) {
         ts = System.currentTimeMillis();
         refLength = readSize;
-        structure.init();
+        indexBlock = block;
+        maxWindow = inputBlockSize / BLOCK_SIZE_RATIO;
+    }
+
+    /**
+     * Compresses the input against the reference, leaving the last chunk open
+     * so the caller can append to it
+     */
+    void compress(CompressionWriter writer, int readSize) throws Exception {
+        writer.startChunk(0, 0);
+        int segments = Math.min(JDNA.SEGMENTS, readSize / MIN_SEGMENT);
+
+        if (segmentPool != null && segments > 1) {
+            compressSegments(writer, readSize, segments);
+        } else {
+            KmerTable table = segmentPool != null ? segmentPool.take() : structure;
+            try {
+                table.init(this);
+                table.setInput(readSize);
+                compress(table, writer, 0, readSize, 0, -1);
+            } finally {
+                if (segmentPool != null) {
+                    segmentPool.give(table);
+                }
+            }
+        }
     }
 
-    void compress(CompressionWriter writer, int readSize) {
+    /**
+     * Compresses input[start, end) starting at referenceIndex. If anchor is not
+     * negative, the input at start is known to match the reference at anchor, and
+     * a new chunk is started there.
+     */
+    private void compress(KmerTable table, CompressionWriter writer, int start, int end, int referenceIndex,
+            int anchor) throws IOException {
 
         int index;
         int matchIndex;
-        int referenceIndex = 0;
         int matchSize;
         int difference;
         int inpDiff;
         int i;
-
-        this.inpLength = readSize;
+        int nextN = -1;
+        int[] getResult = table.getResult;
+
+        index = start;
+        if (anchor >= 0) {
+            matchSize = stretch(start, anchor, end);
+            writer.startChunk(anchor, start);
+            writer.writeAll(0, matchSize);
+            index += matchSize;
+            referenceIndex = anchor + matchSize;
+        }
 
         //for every char in input
-        for (index = 0; index < readSize - JDNA.KMER_SIZE; index++) {
+        for (; index < end - JDNA.KMER_SIZE; index++) {
+
+            if (nextN < index) {
+                nextN = input.nextN(index);
+            }
 
-            if (input[index] == 'N') {
-                int numN = treatNSeq(index, readSize);
-                if (numN == -1) {
-                    writer.writeChar(input[index]);
+            if (nextN == index) {
+                int numN = treatNSeq(index, end);
+                if (numN < MIN_N_RUN) {
+                    for (i = 0; i < numN; i++) {
+                        writer.writeChar('N');
+                    }
                 } else {
-                    writer.writeChar(input[index], numN);
-                    index += numN - 1;
+                    writer.writeChar('N', numN);
                     referenceIndex += numN;
                 }
+                index += numN - 1;
             } else {
 
-                matchSize = 0;
-
                 //search for a match
-                structure.get(index, referenceIndex);
+                table.get(index, referenceIndex);
                 matchIndex = getResult[REFERNECE_MATCH_POSITION];
 
                 //no match
                 if (matchIndex < 0) {
-                    writer.writeChar(input[index]);
+                    writer.writeChar(input.charAt(index));
 
                 } else {
                     //adjust index position
                     if (index < getResult[INPUT_MATCH_POSITION]) {
                         inpDiff = getResult[INPUT_MATCH_POSITION] - index;
                         for (i = 0; i < inpDiff; i++) {
-                            writer.writeChar(input[index + i]);
+                            writer.writeChar(input.charAt(index + i));
                         }
                         index += inpDiff;
                     }
-                    //stretch match
-                    matchSize += JDNA.KMER_SIZE;
-                    while ((index + matchSize < readSize) && //do not pass input length
-                            (matchIndex + matchSize < refLength) && //do not pass reference length
-                            ((input[index + matchSize]) == (reference[matchIndex + matchSize])) //chars are still matching
-                            ) {
-                        matchSize++;
+                    matchSize = stretch(index, matchIndex, end);
+
+                    //a match is a point the decoder can start from
+                    if (index - writer.chunkStart() >= JDNA.CHUNK_SIZE) {
+                        writer.endChunk(index, false);
+                        writer.startChunk(referenceIndex, index);
                     }
 
                     if (matchIndex != referenceIndex) {
@@ -134,84 +231,292 @@ class Compressor {
             }
         }
         //if input is bigger than ref, then write the remainder
-        for (int j = index; j < readSize; j++) {
-            writer.writeChar(input[j]);
+        for (int j = index; j < end; j++) {
+            writer.writeChar(input.charAt(j));
         }
+    }
 
+    /**
+     * Length of the match of at least KMER_SIZE bases between input at index
+     * and reference at matchIndex, not going past end; N bases never match
+     */
+    private int stretch(int index, int matchIndex, int end) {
+        int matchSize = JDNA.KMER_SIZE;
+        int inpLimit = Math.min(end, input.nextN(index + matchSize));
+        int refLimit = Math.min(refLength, reference.nextN(matchIndex + matchSize));
+
+        return matchSize + input.matchLength(index + matchSize, reference, matchIndex + matchSize,
+                Math.min(inpLimit - index, refLimit - matchIndex) - matchSize);
     }
 
-    private int treatNSeq(int index, int readSize) {
-        int i;
-        //the N sequence must be greater than KMER_SIZE for efficiency
-        for (i = index; i < JDNA.KMER_SIZE - 1; i++) {
-            if (input[i] != 'N') {
-                return -1;
+    /**
+     * Splits the block at anchors, long exact matches found near evenly spaced
+     * input positions, and compresses every segment on its own thread. Each
+     * segment after the first starts a chunk of its own at its anchor, so the
+     * segments only have to be put in order afterwards.
+     */
+    private void compressSegments(CompressionWriter writer, final int readSize, int segments) throws Exception {
+        //find the anchors
+        List<Future<int[]>> anchors = new ArrayList<>();
+        for (int i = 1; i < segments; i++) {
+            final int split = (int) ((long) readSize * i / segments);
+            anchors.add(segmentPool.executor.submit(new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    KmerTable table = segmentPool.take();
+                    try {
+                        return findAnchor(table, split, readSize);
+                    } finally {
+                        segmentPool.give(table);
+                    }
+                }
+            }));
+        }
+
+        //keep the anchors that go forward in the input
+        List<int[]> starts = new ArrayList<>();
+        starts.add(new int[]{0, -1});
+        for (int i = 1; i < segments; i++) {
+            int[] anchor = anchors.get(i - 1).get();
+            if (anchor != null && anchor[INPUT_MATCH_POSITION]
+                    >= starts.get(starts.size() - 1)[INPUT_MATCH_POSITION] + MIN_SEGMENT / 2) {
+                starts.add(anchor);
             }
         }
 
-        //get the N sequence
-        while (i < readSize && input[i] == 'N') {
-            i++;
+        //compress the segments
+        List<Future<CompressionWriter>> parts = new ArrayList<>();
+        for (int i = 0; i < starts.size(); i++) {
+            final int start = starts.get(i)[INPUT_MATCH_POSITION];
+            final int anchor = starts.get(i)[REFERNECE_MATCH_POSITION];
+            final int end = i + 1 < starts.size() ? starts.get(i + 1)[INPUT_MATCH_POSITION] : readSize;
+            final CompressionWriter part = i == 0 ? writer : writer.fork();
+            parts.add(segmentPool.executor.submit(new Callable<CompressionWriter>() {
+                @Override
+                public CompressionWriter call() throws IOException {
+                    KmerTable table = segmentPool.take();
+                    try {
+                        table.init(Compressor.this);
+                        table.setInput(end);
+                        compress(table, part, start, end, 0, anchor);
+                    } finally {
+                        segmentPool.give(table);
+                    }
+                    if (end < readSize) {
+                        part.endChunk(end, false);
+                    }
+                    return part;
+                }
+            }));
         }
 
-        return i - index;
+        //put them in order
+        parts.get(0).get();
+        for (int i = 1; i < starts.size(); i++) {
+            parts.get(i).get().appendTo(writer);
+        }
     }
 
-    private class KmerTable {
+    /**
+     * Looks for an anchor for the split at input position split: the first
+     * input k-mer after it whose closest reference match extends over at least
+     * twice KMER_SIZE bases.
+     *
+     * @return the input and reference positions of the anchor, or null if
+     * there is none
+     */
+    private int[] findAnchor(KmerTable table, int split, int readSize) {
+        int[] getResult = table.getResult;
+        int max = Math.min(split + ANCHOR_SEARCH, readSize - 2 * JDNA.KMER_SIZE);
+
+        table.init(this);
+        table.setInput(readSize);
+        table.indexRange(Math.max(0, split - ANCHOR_WINDOW), Math.min(refLength, split + ANCHOR_WINDOW));
+
+        for (int index = split; index < max; index++) {
+            table.lookup(index);
+            if (getResult[REFERNECE_MATCH_POSITION] >= 0
+                    && stretch(index, getResult[REFERNECE_MATCH_POSITION], readSize) >= 2 * JDNA.KMER_SIZE) {
+                return getResult.clone();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Length of the N run starting at index, not going past readSize
+     */
+    private int treatNSeq(int index, int readSize) {
+        return Math.min(input.nRunEnd(index), readSize) - index;
+    }
+
+    /**
+     * Threads the segments of blocks are compressed on, with the k-mer tables
+     * of the compressors sharing it. A table is only taken while a block or
+     * segment is compressed, so there are no more of them than blocks and
+     * segments compressed at once.
+     */
+    static class SegmentPool {
+
+        private final ExecutorService executor;
+        private final ConcurrentLinkedQueue<KmerTable> tables = new ConcurrentLinkedQueue<>();
+
+        SegmentPool(int threads, ThreadFactory factory) {
+            executor = Executors.newFixedThreadPool(threads, factory);
+        }
+
+        private KmerTable take() {
+            KmerTable table = tables.poll();
+            return table != null ? table : new KmerTable();
+        }
+
+        private void give(KmerTable table) {
+            tables.add(table);
+        }
+
+        void shutdown() {
+            executor.shutdown();
+        }
+    }
+
+    private static class KmerTable {
 
-        private static final int INITIAL_SIZE = 5;
-        private static final int INCREASE_FACTOR = 10;
-        private static final int blockSizeRatio = 100;
-        private final int MAX_WINDOW;
+        private static final int MIN_TABLE_BITS = 10;
+        //past 1 / (1 << DENSE_SHIFT) of the block, the index mostly goes on to cover all of it
+        private static final int DENSE_SHIFT = 6;
+        private static final int EMPTY = -1;
         //
         private int numKeys;
-        private final int tableSize;
+        private int tableBits;
         private int lastIndexEnd;
+        private int inpLength;
         //
-        private static final boolean REF = true;
-        private static final boolean INP = false;
+        private final int[] getResult;
+        //block of the compressor the table is in use by
+        private PackedSequence reference;
+        private PackedSequence input;
+        private int refLength;
+        private int maxWindow;
+        private ReferenceIndex.Block indexBlock;
         //
-        private final int[][] table;
-        private final int[] counter;
-        private int[] multiplier;
-        private final static int numChars = 5;
+        //k-mer hash -> last entry put with it; k-mers sharing a slot share a
+        //chain, equals() tells them apart
+        private int[] heads;
+        //entry -> previous entry in its chain. While few positions are indexed,
+        //entries are numbered as they come and positions holds their reference
+        //positions; once the index covers much of the block, the entries are the
+        //reference positions themselves and positions is null. Positions are put
+        //in ascending order, so chains run in descending order either way.
+        private int[] next;
+        private int[] positions;
+        private final RollingHash refHash;
+        private final RollingHash inpHash;
         private boolean indexing;
 
-        //create table
+        //create table, it grows with the positions put and keeps its size from block to block
         KmerTable() {
-            tableSize = blockSize / 5;
-            table = new int[tableSize][];
-            counter = new int[tableSize];
-            setMultiplier(JDNA.KMER_SIZE);
+            sparse();
+            getResult = new int[2];
+            refHash = new RollingHash(JDNA.KMER_SIZE);
+            inpHash = new RollingHash(JDNA.KMER_SIZE);
             numKeys = 0;
-            MAX_WINDOW = blockSize / blockSizeRatio;
             indexing = false;
         }
 
-        //reset table
-        void init() {
+        /**
+         * Resets the table for the block of compressor
+         */
+        void init(Compressor compressor) {
+            reference = compressor.reference;
+            input = compressor.input;
+            refLength = compressor.refLength;
+            maxWindow = compressor.maxWindow;
+            indexBlock = compressor.indexBlock;
             lastIndexEnd = 0;
-            if (numKeys != 0) {
-                Arrays.fill(counter, 0);
+            //nothing of the block compressed before carries over, whichever input it was of
+            indexing = false;
+            refHash.reset(reference);
+            if (positions == null && next.length < refLength) {
+                //the block outgrew the dense table, start small again
+                sparse();
+            } else if (numKeys != 0) {
+                Arrays.fill(heads, EMPTY);
             }
             numKeys = 0;
         }
 
+        private void sparse() {
+            tableBits = MIN_TABLE_BITS;
+            heads = new int[1 << tableBits];
+            Arrays.fill(heads, EMPTY);
+            next = new int[1 << tableBits];
+            positions = new int[1 << tableBits];
+        }
+
+        void setInput(int length) {
+            inpLength = length;
+            inpHash.reset(input);
+        }
+
         void put(int refPos) {
-            int hash = localHashCode(REF, refPos) % tableSize;
-            if (hash < 0) {
-                hash += tableSize;
+            long key = refHash.hash(refPos);
+            if (key == RollingHash.NO_HASH) {
+                return;
             }
+            if (positions != null && numKeys >= refLength >>> DENSE_SHIFT) {
+                dense();
+            }
+            int entry = refPos;
+            if (positions != null) {
+                if (numKeys == positions.length) {
+                    positions = Arrays.copyOf(positions, numKeys * 2);
+                    next = Arrays.copyOf(next, numKeys * 2);
+                }
+                if (numKeys == heads.length) {
+                    rehash();
+                }
+                entry = numKeys;
+                positions[entry] = refPos;
+            }
+            int hash = slot(key);
+            next[entry] = heads[hash];
+            heads[hash] = entry;
+            numKeys++;
+        }
 
-            if (table[hash] == null) {
-                table[hash] = new int[INITIAL_SIZE];
-                numKeys++;
+        /**
+         * Grows the slots fourfold and puts the entries back in the order they
+         * came in, so the chains still run in descending order
+         */
+        private void rehash() {
+            tableBits += 2;
+            heads = new int[1 << tableBits];
+            Arrays.fill(heads, EMPTY);
+            for (int entry = 0; entry < numKeys; entry++) {
+                //ascending positions mostly roll the hash on by one base
+                int hash = slot(refHash.hash(positions[entry]));
+                next[entry] = heads[hash];
+                heads[hash] = entry;
             }
-            if (counter[hash] == table[hash].length) {
-                table[hash] = Arrays.copyOf(table[hash], table[hash].length * INCREASE_FACTOR);
+        }
+
+        /**
+         * Turns the entries into the reference positions, with about a slot for
+         * every position of the block
+         */
+        private void dense() {
+            //the power of two closest to refLength
+            tableBits = Math.max(MIN_TABLE_BITS, 31 - Integer.numberOfLeadingZeros(refLength + (refLength >>> 1)));
+            heads = new int[1 << tableBits];
+            Arrays.fill(heads, EMPTY);
+            next = new int[refLength];
+            for (int entry = 0; entry < numKeys; entry++) {
+                int position = positions[entry];
+                int hash = slot(refHash.hash(position));
+                next[position] = heads[hash];
+                heads[hash] = position;
             }
-            table[hash][counter[hash]] = refPos;
-            counter[hash]++;
+            positions = null;
         }
 
         /**
@@ -273,20 +578,49 @@ class Compressor {
                 }
             }
 
-            int hash = localHashCode(INP, inpPos) % tableSize;
-            if (hash < 0) {
-                hash += tableSize;
-            }
+            lookup(inpPos, refPos);
+        }
 
-            if (counter[hash] == 0) {
-                index(refPos);
-            }
+        /**
+         * Closest indexed reference match of the k-mer at inpPos, without
+         * indexing anything
+         */
+        void lookup(int inpPos) {
+            lookup(inpPos, -1);
+        }
 
-            if (counter[hash] == 0) {
+        private void lookup(int inpPos, int refPos) {
+            long key = inpHash.hash(inpPos);
+            if (key == RollingHash.NO_HASH) {
                 getResult[INPUT_MATCH_POSITION] = -1;
                 getResult[REFERNECE_MATCH_POSITION] = -1;
-            } else {
-                obtainClosestMatch(inpPos, table[hash], counter[hash]);
+                return;
+            }
+            if (indexBlock != null) {
+                //a miss stands for the window indexing of a table built on demand,
+                //which skips the window search of get until the next match
+                if (!lookupIndexed(inpPos, key) && refPos >= 0) {
+                    indexing = true;
+                }
+                return;
+            }
+            //k-mers not indexed yet index the window at refPos
+            if (!obtainClosestMatch(inpPos, heads[slot(key)], 0) && refPos >= 0 && lastIndexEnd != refLength) {
+                int indexed = numKeys;
+                int indexedEnd = lastIndexEnd;
+                index(refPos);
+                //only the entries just put can hold it: those after the ones
+                //there were, or once dense, the positions past the old index end
+                obtainClosestMatch(inpPos, heads[slot(key)], positions == null ? indexedEnd : indexed);
+            }
+        }
+
+        void indexRange(int start, int end) {
+            if (indexBlock != null) {
+                return;
+            }
+            for (int i = refHash.skip(start); i < end - JDNA.KMER_SIZE; i = refHash.skip(i + 1)) {
+                put(i);
             }
         }
 
@@ -304,135 +638,109 @@ class Compressor {
                 end = start + JDNA.INDEX_WINDOW;
                 end = end > refLength ? refLength - JDNA.KMER_SIZE : end - JDNA.KMER_SIZE;
 
-                //actual indexing
-                for (int i = start; i < end; i++) {
+                //actual indexing, jumping over N runs
+                for (int i = refHash.skip(start); i < end; i = refHash.skip(i + 1)) {
                     put(i);
                 }
                 lastIndexEnd = end;
             }
         }
 
-        private int localHashCode(boolean ref, int pos) {
-            int res = 0;
-            if (ref) {
-                for (int i = 0; i < JDNA.KMER_SIZE; i++) {
-                    switch (reference[i + pos]) {
-                        case 'A':
-                            res += 0;
-                            break;
-                        case 'C':
-                            res += multiplier[i];
-                            break;
-                        case 'T':
-                            res += 2 * multiplier[i];
-                            break;
-                        case 'G':
-                            res += 3 * multiplier[i];
-                            break;
-                        case 'N':
-                            res += 4 * multiplier[i];
-                            break;
-                    }
-                }
-            } else {
-                for (int i = 0; i < JDNA.KMER_SIZE; i++) {
-                    switch (input[i + pos]) {
-                        case 'A':
-                            res += 0;
-                            break;
-                        case 'C':
-                            res += multiplier[i];
-                            break;
-                        case 'T':
-                            res += 2 * multiplier[i];
-                            break;
-                        case 'G':
-                            res += 3 * multiplier[i];
-                            break;
-                        case 'N':
-                            res += 4 * multiplier[i];
-                            break;
-                    }
+        /**
+         * Closest match of the k-mer at inpPos in the persistent index, walking
+         * out from inpPos on both sides of its sorted group
+         *
+         * @return whether one was found
+         */
+        private boolean lookupIndexed(int inpPos, long key) {
+            int group = indexBlock.group(key);
+            int first = indexBlock.start(group);
+            int end = indexBlock.end(group);
+
+            int low = first, high = end;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (indexBlock.position(middle) < inpPos) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
                 }
             }
 
-            return res;
-        }
-
-        private void obtainClosestMatch(int inpPos, int[] values, int numValues) {
-            if (numValues == 1) {
-                if (equals(values[0], inpPos)) {
-                    if ((values[0] > inpPos - MAX_WINDOW && values[0] < inpPos + MAX_WINDOW)) {
-                        getResult[INPUT_MATCH_POSITION] = inpPos;
-                        getResult[REFERNECE_MATCH_POSITION] = values[0];
-                        indexing = false;
-                        return;
-                    } else {
-                        getResult[INPUT_MATCH_POSITION] = -1;
-                        getResult[REFERNECE_MATCH_POSITION] = -1;
-                        return;
-                    }
+            int before = low - 1;
+            int after = low;
+            while (before >= first || after < end) {
+                int value;
+                if (after >= end || (before >= first
+                        && inpPos - indexBlock.position(before) <= indexBlock.position(after) - inpPos)) {
+                    value = indexBlock.position(before--);
+                } else {
+                    value = indexBlock.position(after++);
                 }
-            }
-
-            int dif1 = -1, dif2;
-            int count = 0;
-            int lastRes = -1;
-
-            boolean dif1Done = false, dif2Done = false;
-            //first, a match with one of the ref values must be found
-            while (!dif1Done && count < numValues) {
-                if (equals(values[count], inpPos)) {
-                    dif1 = Math.abs(values[count] - inpPos);
-                    lastRes = values[count];
-                    dif1Done = true;
+                if (Math.abs(value - inpPos) >= maxWindow) {
+                    break;
+                }
+                if (equals(value, inpPos)) {
+                    getResult[INPUT_MATCH_POSITION] = inpPos;
+                    getResult[REFERNECE_MATCH_POSITION] = value;
+                    indexing = false;
+                    return true;
                 }
-                count++;
-            }
-            if (!dif1Done) {
-                getResult[INPUT_MATCH_POSITION] = -1;
-                getResult[REFERNECE_MATCH_POSITION] = -1;
-                return;
             }
+            getResult[INPUT_MATCH_POSITION] = -1;
+            getResult[REFERNECE_MATCH_POSITION] = -1;
+            return false;
+        }
 
-            //search the remaining values to find the closest one to the input
-            while (!dif2Done && count < numValues) {
-                if (equals(values[count], inpPos)) {
-                    dif2 = Math.abs(values[count] - inpPos);
-                    if (dif2 > dif1) {
-                        dif2Done = true;
-                    } else {
-                        dif1 = dif2;
-                        lastRes = values[count];
+        private int slot(long key) {
+            //spread the 2-bit packed k-mer over the whole table
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - tableBits));
+        }
+
+        /**
+         * Closest position to inpPos holding the k-mer at inpPos in the chain
+         * from entry down to entry first, if it is within maxWindow
+         *
+         * @return whether that part of the chain holds the k-mer at all
+         */
+        private boolean obtainClosestMatch(int inpPos, int entry, int first) {
+            int closest = -1;
+            int distance = Integer.MAX_VALUE;
+
+            //chains run in descending order, so the distance falls until the
+            //chain passes inpPos and grows from then on
+            while (entry >= first) {
+                int position = positions == null ? entry : positions[entry];
+                entry = next[entry];
+                if (equals(position, inpPos)) {
+                    int difference = Math.abs(position - inpPos);
+                    if (difference > distance) {
+                        break;
                     }
+                    distance = difference;
+                    closest = position;
                 }
-                count++;
             }
 
-            if ((lastRes > inpPos - MAX_WINDOW && lastRes < inpPos + MAX_WINDOW)) {
+            if (closest >= 0 && distance < maxWindow) {
                 getResult[INPUT_MATCH_POSITION] = inpPos;
-                getResult[REFERNECE_MATCH_POSITION] = lastRes;
+                getResult[REFERNECE_MATCH_POSITION] = closest;
                 indexing = false;
             } else {
                 getResult[INPUT_MATCH_POSITION] = -1;
                 getResult[REFERNECE_MATCH_POSITION] = -1;
             }
+            return closest >= 0;
         }
 
         private boolean equals(int posRef, int posInp) {
-            for (int i = 0; i < JDNA.KMER_SIZE; i++) {
-                if (reference[posRef + i] != input[posInp + i]) {
-                    return false;
-                }
-            }
-            return true;
-        }
-
-        private void setMultiplier(int kSize) {
-            multiplier = new int[kSize];
-            for (int i = 0; i < kSize; i++) {
-                multiplier[i] = (int) Math.pow(numChars, i);
+            if (posRef + JDNA.KMER_SIZE > refLength || posInp + JDNA.KMER_SIZE > inpLength
+                    || reference.matchLength(posRef, input, posInp, JDNA.KMER_SIZE) != JDNA.KMER_SIZE) {
+                return false;
             }
+            //N bases are stored as A, so they have to be ruled out apart
+            return reference.nextN(posRef) >= posRef + JDNA.KMER_SIZE
+                    && input.nextN(posInp) >= posInp + JDNA.KMER_SIZE;
         }
     }
 }//Kmer
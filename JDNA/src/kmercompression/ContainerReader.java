@@ -0,0 +1,185 @@
+package kmercompression;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the format written by ContainerWriter, either through the index footer
+ * or chunk after chunk.
+ *
+ * Copyright (c) 2014, Fernando Alves <falves@lasige.di.fc.ul.pt>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+class ContainerReader {
+
+    static final int HEADER = 20;
+    static final int CODEC_HEADER = 8;
+    static final int CHUNK_HEADER = 24;
+    private static final int TRAILER = 12;
+    //
+    private final FileInputStream file;
+    private final FileChannel channel;
+    private final int version;
+    private FastaLayout layout;
+    private BaseMask mask;
+    final int kmerSize;
+    final int blockSize;
+    final int maxDigits;
+    final Codec codec;
+
+    ContainerReader(File compressed) throws IOException {
+        file = new FileInputStream(compressed);
+        channel = file.getChannel();
+
+        ByteBuffer header = read(0, HEADER);
+        header.getInt();
+        version = header.getInt();
+        if (version < 1 || version > ContainerWriter.VERSION) {
+            throw new IOException("unsupported version of " + compressed.getName());
+        }
+        kmerSize = header.getInt();
+        blockSize = header.getInt();
+        maxDigits = header.getInt();
+        if (version == 1) {
+            codec = Codec.get(Codec.GZIP, 0);
+        } else {
+            ByteBuffer codecHeader = read(HEADER, CODEC_HEADER);
+            codec = Codec.get(codecHeader.getInt(), codecHeader.getInt());
+        }
+    }
+
+    /**
+     * Returns true if the file starts like a container, false for the older
+     * plain GZIP stream
+     */
+    static boolean isContainer(File compressed) throws IOException {
+        if (compressed.length() < HEADER) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(compressed));
+        try {
+            return in.readInt() == ContainerWriter.MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads the chunk index from the footer, and the layout and mask after it
+     */
+    List<Chunk> index() throws IOException {
+        ByteBuffer trailer = read(channel.size() - TRAILER, TRAILER);
+        long footer = trailer.getLong();
+        if (trailer.getInt() != ContainerWriter.FOOTER_MAGIC) {
+            throw new IOException("compressed file has no index");
+        }
+
+        ByteBuffer entries = read(footer, (int) (channel.size() - TRAILER - footer));
+        entries.getInt();
+        int count = entries.getInt();
+        List<Chunk> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Chunk chunk = new Chunk(entries.getInt(), entries.getInt(), entries.getLong(), entries.getInt());
+            chunk.fileOffset = entries.getLong();
+            chunks.add(chunk);
+        }
+        if (version >= 3) {
+            int length = entries.getInt();
+            if (length > 0) {
+                layout = FastaLayout.read(section(entries, length));
+            }
+        }
+        if (version >= 4) {
+            int length = entries.getInt();
+            if (length > 0) {
+                mask = BaseMask.read(section(entries, length));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Line layout of a FASTA input, or null for raw input or a file older
+     * than version 3. Only known once index() has been read.
+     */
+    FastaLayout layout() {
+        return layout;
+    }
+
+    /**
+     * Lowercase and IUPAC bases of the input, or null if it had none or the
+     * file is older than version 4. Only known once index() has been read.
+     */
+    BaseMask mask() {
+        return mask;
+    }
+
+    /**
+     * The next length bytes of buffer, which moves past them
+     */
+    private static ByteBuffer section(ByteBuffer buffer, int length) {
+        ByteBuffer section = buffer.slice();
+        section.limit(length);
+        buffer.position(buffer.position() + length);
+        return section;
+    }
+
+    /**
+     * Stream over the bit stream of chunk, read from its place in the file
+     */
+    InputStream open(Chunk chunk) throws IOException {
+        ByteBuffer header = read(chunk.fileOffset + CHUNK_HEADER - 4, 4);
+        chunk.payloadLength = header.getInt();
+        chunk.payload = read(chunk.fileOffset + CHUNK_HEADER, chunk.payloadLength).array();
+        InputStream in = chunk.decode(codec);
+
+        //only the stream keeps the payload, so it goes once the chunk is decoded
+        chunk.payload = null;
+        return in;
+    }
+
+    void close() throws IOException {
+        file.close();
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new IOException("unexpected end of compressed file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,121 @@
+package kmercompression;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the random-access compressed format: a header with the parameters the
+ * decoder needs, the chunks one after the other, and an index footer locating
+ * every chunk.
+ *
+ * Copyright (c) 2014, Fernando Alves <falves@lasige.di.fc.ul.pt>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+class ContainerWriter {
+
+    static final int MAGIC = 0x4A444E41; //JDNA
+    static final int FOOTER_MAGIC = 0x4A444E58; //JDNX
+    //version 1 had no codec in the header, its chunks are GZIP streams;
+    //version 2 had no layout in the footer, FASTA layouts went to a .ccom file
+    //version 3 had no case mask, lowercase and IUPAC bases were written as N
+    //version 4 had one line ending, LF or CRLF, for all lines of a FASTA input
+    static final int VERSION = 5;
+    static final int END_OF_CHUNKS = -1;
+    //
+    private final DataOutputStream out;
+    private final List<Chunk> index;
+    private long position;
+
+    ContainerWriter(OutputStream output, int kmerSize, int blockSize, int maxDigits, Codec codec, int bufferSize)
+            throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(output, bufferSize));
+        index = new ArrayList<>();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(kmerSize);
+        out.writeInt(blockSize);
+        out.writeInt(maxDigits);
+        out.writeInt(codec.id);
+        out.writeInt(codec.level);
+        position = ContainerReader.HEADER + ContainerReader.CODEC_HEADER;
+    }
+
+    void write(List<Chunk> chunks) throws IOException {
+        for (Chunk chunk : chunks) {
+            write(chunk);
+        }
+    }
+
+    void write(Chunk chunk) throws IOException {
+        chunk.fileOffset = position;
+        writeEntry(chunk);
+        out.writeInt(chunk.payloadLength);
+        out.write(chunk.payload, 0, chunk.payloadLength);
+        position += ContainerReader.CHUNK_HEADER + chunk.payloadLength;
+
+        //only the index entry is kept
+        chunk.payload = null;
+        index.add(chunk);
+    }
+
+    /**
+     * Writes the index footer, with the line layout of a FASTA input and the
+     * case mask, and closes the output
+     *
+     * @param layout layout of the input, or null for raw input
+     * @param mask bases of the input packing left out
+     */
+    void close(FastaLayout layout, BaseMask mask) throws IOException {
+        long footer = position;
+
+        out.writeInt(END_OF_CHUNKS);
+        out.writeInt(index.size());
+        for (Chunk chunk : index) {
+            writeEntry(chunk);
+            out.writeLong(chunk.fileOffset);
+        }
+        byte[] bytes = layout == null ? new byte[0] : layout.toBytes();
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        bytes = mask.isEmpty() ? new byte[0] : mask.toBytes();
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeLong(footer);
+        out.writeInt(FOOTER_MAGIC);
+        out.close();
+    }
+
+    private void writeEntry(Chunk chunk) throws IOException {
+        out.writeInt(chunk.block);
+        out.writeInt(chunk.refIndex);
+        out.writeLong(chunk.outputOffset);
+        out.writeInt(chunk.bases);
+    }
+}
@@ -1,14 +1,21 @@
 package kmercompression;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.nio.channels.FileChannel;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -42,18 +49,40 @@ import java.util.zip.GZIPInputStream;
 public class Decompressor {
 
     private static final int CHAR_SIZE = 3;
+    //what ends a run of characters
+    private static final int CONTINUE = 0;
+    private static final int CHANGE = 1;
+    private static final int TERMINATION = 2;
+    //
     private final int MAXIMUM_NUMBER_BITS;
     private final long blockSize;
-    private final byte[] ref;
-    private BufferedOutputStream dcmpWriter;
+    //matches at least this long go from the reference map straight to the output channel
+    private static final int DIRECT_MATCH = 4096;
+    //N runs are written in slices of this
+    private static final byte[] N_RUN = new byte[1 << 16];
+    static {
+        Arrays.fill(N_RUN, (byte) 'N');
+    }
+    //raw output: literals and short matches are gathered in buffer
+    private WritableByteChannel output;
+    private final ByteBuffer buffer;
+    private ReferenceSource reference;
+    //decoded operations, written by the output thread
+    private OpPipeline ops;
+    private ExecutorService writing;
+    private Future<Void> written;
+    //N bases in runs read by the last readChars, they move the reference index
+    private int nSkipped;
+    //FASTA output: the layout of the input and the writer putting the bases back in its lines
+    private FastaLayout layout;
+    private FastaWriter fasta;
+    //lowercase and IUPAC bases to put back, null if there are none
+    private BaseMask mask;
     private static final boolean debugDecompression = false;
-    private int charCounter;
-    private int lineCounter;
-    private int totalCounter;
-    private boolean hasComments;
-    private LinkedList<String> comments;
-    private LinkedList<Integer> positions;
-    private LinkedList<Integer> sizes;
+    //output position, and the part of the output actually written
+    private long outPos;
+    private long regionStart;
+    private long regionEnd;
     //
     private static final byte _16 = 0x10;
     private static final byte _48 = 48;
@@ -61,464 +90,444 @@ public class Decompressor {
     private static final int _240 = 240;
     private static final int _496 = 496;
     private static final int _1008 = 1008;
+    //payload size and offset of each 3-bit selector; selectors 0 and 1 move back
+    private static final int[] ADJUST_BASE = {0, 0, 2, 10, 18, 34, 290, 0};
+    private final int[] adjustBits;
+    private final int[] lengthBits;
+    private final int[] lengthBase;
 
     Decompressor(int effectiveSize, int maxDigits) {
         MAXIMUM_NUMBER_BITS = maxDigits;
+        adjustBits = new int[]{maxDigits, 7, 3, 3, 4, 8, 9, maxDigits};
+        lengthBits = new int[]{4, 5, 6, 7, 8, 9, 10, maxDigits};
+        lengthBase = new int[]{JDNA.KMER_SIZE, JDNA.KMER_SIZE + _16, JDNA.KMER_SIZE + _48, JDNA.KMER_SIZE + _112,
+            JDNA.KMER_SIZE + _240, JDNA.KMER_SIZE + _496, JDNA.KMER_SIZE + _1008, 0};
         blockSize = effectiveSize;
-        ref = new byte[JDNA.DECOMPRESS_MEM];
-        charCounter = 0;
-        lineCounter = 0;
-        totalCounter = 0;
+        buffer = ByteBuffer.allocateDirect(JDNA.DECOMPRESS_MEM);
+        regionStart = 0;
+        regionEnd = Long.MAX_VALUE;
     }
 
+    /**
+     * Decompresses a file in the older format, a single GZIP stream
+     */
     void decompress(File referenceFile, File compressedFile, File outputFile) {
+        readComments(compressedFile);
+
+        BitInputStream bis = null;
+        try {
+            bis = new BitInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(compressedFile)), JDNA.ONEMB));
+            open(referenceFile, outputFile);
+
+            long counter = 0;
+            while (decodeChunk(bis, counter * blockSize, 0) == CHANGE) {
+                counter++;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (bis != null) {
+                    bis.close();
+                }
+                finishWriting();
+                close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Decompresses every chunk of a container
+     */
+    void decompress(File referenceFile, ContainerReader container, File compressedFile, File outputFile) {
+        readComments(compressedFile);
+        decompress(referenceFile, container, outputFile, true);
+    }
+
+    /**
+     * Decompresses the bases in [start, end) of the original input, decoding
+     * only the chunks that overlap them. The bases are written without any
+     * FASTA layout.
+     */
+    void decompressRegion(File referenceFile, ContainerReader container, File outputFile, long start, long end) {
+        layout = null;
+        regionStart = start;
+        regionEnd = end;
+        decompress(referenceFile, container, outputFile, false);
+    }
+
+    /**
+     * @param withLayout whether to write a FASTA input back in its lines
+     */
+    private void decompress(File referenceFile, ContainerReader container, File outputFile, boolean withLayout) {
+        try {
+            List<Chunk> chunks = container.index();
+            mask = container.mask();
+            if (withLayout && container.layout() != null) {
+                layout = container.layout();
+            }
+            open(referenceFile, outputFile);
+
+            for (Chunk chunk : chunks) {
+                if (!chunk.overlaps(regionStart, regionEnd)) {
+                    continue;
+                }
+                ops.position(chunk.outputOffset);
+                InputStream in = container.open(chunk);
+                if (container.codec.codesTokens()) {
+                    decodeTokens(new RangeDecoder(in), chunk.block * blockSize, chunk.refIndex);
+                } else {
+                    BitInputStream bis = new BitInputStream(in);
+                    decodeChunk(bis, chunk.block * blockSize, chunk.refIndex);
+                    bis.close();
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                container.close();
+                finishWriting();
+                close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
+    /**
+     * Older versions kept the layout of FASTA inputs in a .ccom file named
+     * after the compressed file
+     */
+    private void readComments(File compressedFile) {
         String line = compressedFile.getName();
         String[] splitted = line.split("\\.");
         File cFile = new File(splitted[0] + ".ccom");
+        layout = null;
         if (cFile.exists()) {
-            hasComments = true;
-            comments = new LinkedList<String>();
-            positions = new LinkedList<Integer>();
-            sizes = new LinkedList<Integer>();
             try {
-                BufferedReader commentReader = new BufferedReader(new FileReader(cFile));
-                while (commentReader.ready()) {
-                    line = commentReader.readLine();
-                    splitted = line.split(JDNA.COMMENT_SEPARATOR);
-                    positions.add(Integer.parseInt(splitted[0]));
-                    comments.add(splitted[1]);
-                    sizes.add(Integer.parseInt(splitted[2]));
-                }
-                commentReader.close();
+                layout = FastaLayout.fromComments(cFile);
             } catch (Exception ex) {
                 ex.printStackTrace();
             }
+        }
+    }
+
+    private void open(File referenceFile, File outputFile) throws IOException {
+        reference = new ReferenceSource(referenceFile);
+        outPos = 0;
+        OutputStream out = JDNA.isStream(outputFile) ? JDNA.STDOUT : new FileOutputStream(outputFile);
+        if (layout != null) {
+            fasta = new FastaWriter(out, layout);
         } else {
-            hasComments = false;
+            output = Channels.newChannel(out);
+            buffer.clear();
         }
 
-        BitInputStream bis = null;
-        BufferedInputStream refReader = null;
-        FileInputStream fis = null;
-        FileChannel fileChannel = null;
+        //tokens are decoded on this thread and written on another
+        ops = new OpPipeline();
+        writing = Executors.newSingleThreadExecutor();
+        written = writing.submit(new OutputTask());
+    }
 
-        boolean done = false;
-        boolean change;
-        boolean readChars = false;
+    /**
+     * Ends the operations and waits for the output thread to write them
+     */
+    private void finishWriting() throws Exception {
+        if (written == null) {
+            return;
+        }
+        try {
+            ops.close();
+            written.get();
+        } finally {
+            written = null;
+            writing.shutdown();
+        }
+    }
 
-        int refArraySize = ref.length;
+    /**
+     * Writes the operations of the decoder, on its own thread, until the last
+     * batch. After a failure it keeps taking batches so the decoder never
+     * waits forever, and reports the failure at the end.
+     */
+    private class OutputTask implements Callable<Void> {
+
+        @Override
+        public Void call() throws Exception {
+            Exception failure = null;
+            boolean last = false;
+            while (!last) {
+                OpPipeline.Batch batch = ops.take();
+                if (failure == null) {
+                    try {
+                        write(batch);
+                    } catch (Exception e) {
+                        failure = e;
+                    }
+                }
+                last = batch.last;
+                ops.recycle(batch);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+    }
+
+    private void write(OpPipeline.Batch batch) throws Exception {
+        int literal = 0;
+        for (int i = 0; i < batch.count; i++) {
+            int length = batch.lengths[i];
+            switch (batch.kinds[i]) {
+                case OpPipeline.COPY:
+                    copy(batch.values[i], length);
+                    break;
+                case OpPipeline.LITERALS:
+                    write(ByteBuffer.wrap(batch.literals, literal, length));
+                    literal += length;
+                    break;
+                case OpPipeline.FILL:
+                    fill(length);
+                    break;
+                default:
+                    outPos = batch.values[i];
+            }
+        }
+    }
+
+    private void close() throws IOException {
+        if (fasta != null) {
+            fasta.close();
+        }
+        if (output != null) {
+            flushBuffer();
+            output.close();
+        }
+    }
 
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            output.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Decodes tokens until the end of a chunk
+     * @param blockStart position of the reference block in the reference file
+     * @param globalIndex reference index, within the block, the chunk starts at
+     * @return CHANGE or TERMINATION, whichever ended the chunk
+     */
+    private int decodeChunk(BitInputStream bis, long blockStart, int globalIndex) throws Exception {
         int b;
         int length = 0;
-        int globalIndex = 0;
-        int arrayIndex = 0;
-        int indexAdjust;
-        int prevFilledSize = 0;
-        int amountToWrite;
-        int amountWrote;
-        long counter = 0;
+        int indexAdjust = 0;
 
-        try {
+        int status = readChars(bis);
+        globalIndex += nSkipped;
 
-            bis = new BitInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(compressedFile)), JDNA.ONEMB));
-            fis = new FileInputStream(referenceFile);
-            refReader = new BufferedInputStream(fis);
-            fileChannel = fis.getChannel();
-            dcmpWriter = new BufferedOutputStream(new FileOutputStream(outputFile), JDNA.ONEMB);
-
-            do {
-                change = false;
-                arrayIndex = 0;
-                globalIndex = 0;
-
-                fileChannel.position(((long) (counter * blockSize)));
-                refReader.read(ref);
-
-                b = bis.read(CHAR_SIZE);
-                switch (b) {
-                    case 0:
-                        write('A');
-                        break;
-                    case 1:
-                        write('C');
-                        break;
-                    case 2:
-                        write('T');
-                        break;
-                    case 3:
-                        write('G');
-                        break;
-                    case 4:
-                        b = bis.read(1);
-                        if (b == 0) {
-                            write('N');
-                        } else {
-                            b = bis.read(MAXIMUM_NUMBER_BITS);
-                            for (int i = 0; i < b; i++) {
-                                write('N');
-                            }
-                            globalIndex += b;
-                        }
-                        break;
-                    case 5:
-                        do {
-                            b = bis.read(3);
-                            switch (b) {
-                                case 0:
-                                    write('A');
-                                    break;
-                                case 1:
-                                    write('C');
-                                    break;
-                                case 2:
-                                    write('T');
-                                    break;
-                                case 3:
-                                    write('G');
-                                    break;
-                                case 4:
-                                    b = bis.read(1);
-                                    if (b == 0) {
-                                        write('N');
-                                    } else {
-                                        b = bis.read(MAXIMUM_NUMBER_BITS);
-                                        for (int i = 0; i < b; i++) {
-                                            write('N');
-                                        }
-                                        globalIndex += b;
-                                    }
-                                    break;
-                                case 5:
-                                    readChars = true;
-                                    break;
-                                case 6:
-                                    change = true;
-                                    break;
-                                case 7:
-                                    change = true;
-                                    done = true;
-                                    break;
-                            }
-                        } while (!readChars);
-                        readChars = false;
-                        break;
-                    case 6:
-                        change = true;
-                        break;
-                    case 7:
-                        change = true;
-                        done = true;
-                        break;
-                }
+        while (status == CONTINUE) {
+            if (debugDecompression) {
+                System.out.print("index: " + globalIndex);
+            }
+            b = bis.peek(4);
+            if (b < 8) { //read 0 -> SNP
+                bis.skipBits(1);
+                globalIndex++;
+                indexAdjust = 1;
+            } else { // read 1 -> index adjust, selected by the next 3 bits
+                bis.skipBits(4);
+                b &= 7;
+                indexAdjust = bis.read(adjustBits[b]) + ADJUST_BASE[b];
+                globalIndex += b < 2 ? -indexAdjust : indexAdjust;
+            }
 
-                if(change && done) break;
+            b = bis.read(3);
+            length = bis.read(lengthBits[b]) + lengthBase[b];
 
-                do {
-                    b = bis.read(1);
-                    if (debugDecompression) {
-                        System.out.print("index: " + globalIndex);
-                    }
-                    if (b == 0) { //read 0 -> SNP
-                        globalIndex++;
-                        indexAdjust = 1;
-                    } else { // read 1 -> index adjust
-                        b = bis.read(3);
-                        switch (b) {
-                            case 0:
-                                indexAdjust = bis.read(MAXIMUM_NUMBER_BITS);
-                                globalIndex -= indexAdjust;
-                                break;
-                            case 1:
-                                indexAdjust = bis.read(7);
-                                globalIndex -= indexAdjust;
-                                break;
-                            case 2:
-                                indexAdjust = bis.read(3) + 2;
-                                globalIndex += indexAdjust;
-                                break;
-                            case 3:
-                                indexAdjust = bis.read(3) + 10;
-                                globalIndex += indexAdjust;
-                                break;
-                            case 4:
-                                indexAdjust = bis.read(4) + 18;
-                                globalIndex += indexAdjust;
-                                break;
-                            case 5:
-                                indexAdjust = bis.read(8) + 34;
-                                globalIndex += indexAdjust;
-                                break;
-                            case 6:
-                                indexAdjust = bis.read(9) + 290;
-                                globalIndex += indexAdjust;
-                                break;
-                            case 7:
-                                indexAdjust = bis.read(MAXIMUM_NUMBER_BITS);
-                                globalIndex += indexAdjust;
-                                break;
-                        }
-                    }
+            ops.copy(blockStart + globalIndex, length);
+            globalIndex += length;
 
-                    b = bis.read(3);
-
-                    switch (b) {
-                        case 0:
-                            length = bis.read(4) + JDNA.KMER_SIZE;
-                            break;
-                        case 1:
-                            length = bis.read(5) + JDNA.KMER_SIZE + _16;
-                            break;
-                        case 2:
-                            length = bis.read(6) + JDNA.KMER_SIZE + _48;
-                            break;
-                        case 3:
-                            length = bis.read(7) + JDNA.KMER_SIZE + _112;
-                            break;
-                        case 4:
-                            length = bis.read(8) + JDNA.KMER_SIZE + _240;
-                            break;
-                        case 5:
-                            length = bis.read(9) + JDNA.KMER_SIZE + _496;
-                            break;
-                        case 6:
-                            length = bis.read(10) + JDNA.KMER_SIZE + _1008;
-                            break;
-                        case 7:
-                            length = bis.read(MAXIMUM_NUMBER_BITS);
-                            break;
-                    }
-                    
-                    //if the writing point is behind the current point
-                    if (globalIndex < arrayIndex) {
-                        fileChannel.position((long) (globalIndex + (blockSize * counter)));
-                        arrayIndex = globalIndex;
-
-                        if (length > refArraySize) {
-                            while (arrayIndex + refArraySize < globalIndex + length) {
-                                refReader.read(ref);
-                                write();
-                                arrayIndex += refArraySize;
-                            }
-                            refReader.read(ref);
-                            write(0, globalIndex + length - arrayIndex);
-
-                        } else {
-                            refReader.read(ref);
-                            write(0, length);
-                        }
-
-                        //if the array must advance in the reference
-                    } else if (globalIndex + length > arrayIndex + refArraySize) {
-                        //if the array must fully move, then move the reader to the new place, then refill the array
-                        if (arrayIndex + refArraySize < globalIndex) {
-                            //refReader.skip( (long) ( globalIndex - (arrayIndex + refArraySize) ) );
-                            fileChannel.position((long) (globalIndex + (blockSize * counter)));
-                            arrayIndex = globalIndex;
-                            if (length > refArraySize) {
-                                while (arrayIndex + refArraySize < globalIndex + length) {
-                                    refReader.read(ref);
-                                    write();
-                                    arrayIndex += refArraySize;
-                                }
-                                refReader.read(ref);
-                                write(0, globalIndex + length - arrayIndex);
-
-                            } else {
-                                refReader.read(ref);
-                                write(0, length);
-                            }
-
-                        } else { //if just a part of the array has to advance in the reference
-                            prevFilledSize = globalIndex - arrayIndex;
-                            if (length > refArraySize) {
-                                amountToWrite = length;
-                                write(prevFilledSize, refArraySize - prevFilledSize);
-                                amountToWrite -= (refArraySize - prevFilledSize);
-                                arrayIndex += refArraySize;
-                                if (amountToWrite > refArraySize) {
-                                    amountWrote = 0;
-                                    while (amountToWrite - amountWrote > refArraySize) {
-                                        refReader.read(ref);
-                                        write();
-                                        arrayIndex += refArraySize;
-                                        amountWrote += refArraySize;
-                                    }
-
-                                    refReader.read(ref);
-                                    write(0, amountToWrite - amountWrote);
-                                } else {
-                                    refReader.read(ref);
-                                    write(0, amountToWrite);
-                                }
-                            } else {
-                                amountToWrite = length;
-                                write(prevFilledSize, refArraySize - prevFilledSize);
-                                amountToWrite -= (refArraySize - prevFilledSize);
-
-                                refReader.read(ref);
-                                write(0, amountToWrite);
-                                arrayIndex += refArraySize;
-                            }
-                        }
-                    } else {
-                        write(globalIndex - arrayIndex, length);
-                    }
-
-                    globalIndex += length;
+            status = readChars(bis);
+            globalIndex += nSkipped;
 
-                    b = bis.read(CHAR_SIZE);
-                    switch (b) {
-                        case 0:
-                            write('A');
-                            break;
-                        case 1:
-                            write('C');
-                            break;
-                        case 2:
-                            write('T');
-                            break;
-                        case 3:
-                            write('G');
-                            break;
-                        case 4:
-                            b = bis.read(1);
-                            if (b == 0) {
-                                write('N');
-                            } else {
-                                b = bis.read(MAXIMUM_NUMBER_BITS);
-                                for (int i = 0; i < b; i++) {
-                                    write('N');
-                                }
-                                globalIndex += b;
-                            }
-                            break;
-                        case 5:
-                            do {
-                                b = bis.read(3);
-                                switch (b) {
-                                    case 0:
-                                        write('A');
-                                        break;
-                                    case 1:
-                                        write('C');
-                                        break;
-                                    case 2:
-                                        write('T');
-                                        break;
-                                    case 3:
-                                        write('G');
-                                        break;
-                                    case 4:
-                                        b = bis.read(1);
-                                        if (b == 0) {
-                                            write('N');
-                                        } else {
-                                            b = bis.read(MAXIMUM_NUMBER_BITS);
-                                            for (int i = 0; i < b; i++) {
-                                                write('N');
-                                            }
-                                            globalIndex += b;
-                                        }
-                                        break;
-                                    case 5:
-                                        readChars = true;
-                                        break;
-                                    case 6:
-                                        change = true;
-                                        break;
-                                    case 7:
-                                        change = true;
-                                        done = true;
-                                        break;
-                                }
-                            } while (!readChars);
-                            readChars = false;
-                            break;
-                        case 6:
-                            change = true;
-                            break;
-                        case 7:
-                            change = true;
-                            done = true;
-                            break;
-                    }
+            if (debugDecompression) {
+                System.out.println("; diff: " + indexAdjust + "; ms: " + length);
+            }
+        }
+        return status;
+    }
 
-                    if (debugDecompression) {
-                        System.out.println("; diff: " + indexAdjust + "; ms: " + length);
+    /**
+     * Decodes the range coded tokens of a chunk, see TokenModel
+     * @return CHANGE or TERMINATION, whichever ended the chunk
+     */
+    private int decodeTokens(RangeDecoder rd, long blockStart, int globalIndex) throws Exception {
+        TokenModel model = new TokenModel(MAXIMUM_NUMBER_BITS, JDNA.KMER_SIZE);
+
+        while (true) {
+            int symbol = model.decodeLiteral(rd);
+            switch (symbol) {
+                case 0:
+                    ops.literal('A');
+                    break;
+                case 1:
+                    ops.literal('C');
+                    break;
+                case 2:
+                    ops.literal('T');
+                    break;
+                case 3:
+                    ops.literal('G');
+                    break;
+                case TokenModel.N:
+                    if (model.run == 0) {
+                        ops.literal('N');
+                    } else {
+                        ops.fill(model.run);
+                        globalIndex += model.run;
                     }
-                } while (!change);
-                counter++;
-            } while (!done);
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                bis.close();
-                dcmpWriter.flush();
-                dcmpWriter.close();
-            } catch (Exception e) {
-                e.printStackTrace();
+                    break;
+                case TokenModel.END:
+                    int difference = model.decodeAdjustment(rd);
+                    int length = model.decodeLength(rd, difference);
+                    globalIndex += difference;
+                    ops.copy(blockStart + globalIndex, length);
+                    globalIndex += length;
+                    break;
+                case TokenModel.CHANGE:
+                    return CHANGE;
+                default:
+                    return TERMINATION;
             }
         }
     }
 
-    private void write(int start, int len) throws Exception {
-        if (!hasComments) {
-            dcmpWriter.write(ref, start, len);
-        } else {
-            int max = start + len;
-            for (int i = start; i < max; i++) {
-                dcmpWriter.write(ref[i]);
-                totalCounter++;
-                charCounter = (charCounter + 1) % JDNA.FASTA_LINE_SIZE;
-
-                addLineBreaks();
+    /**
+     * Reads a single character or a sequence of them
+     * @return CONTINUE if a match follows, or CHANGE or TERMINATION
+     */
+    private int readChars(BitInputStream bis) throws Exception {
+        int status = CONTINUE;
+        nSkipped = 0;
+
+        int b = readChar(bis);
+        if (b == 5) {
+            while ((b = readChar(bis)) != 5) {
+                if (b == 6) {
+                    status = CHANGE;
+                } else if (b == 7) {
+                    status = TERMINATION;
+                }
             }
+        } else if (b == 6) {
+            status = CHANGE;
+        } else if (b == 7) {
+            status = TERMINATION;
         }
+        return status;
     }
 
-    private void write(char c) throws Exception {
-        if (!hasComments) {
-            dcmpWriter.write(c);
-        } else {
-            addLineBreaks();
-
-            dcmpWriter.write(c);
-            totalCounter++;
-            charCounter = (charCounter + 1) % JDNA.FASTA_LINE_SIZE;
+    /**
+     * Reads and writes a single character token
+     * @return the token code
+     */
+    private int readChar(BitInputStream bis) throws Exception {
+        int b = bis.read(CHAR_SIZE);
+        switch (b) {
+            case 0:
+                ops.literal('A');
+                break;
+            case 1:
+                ops.literal('C');
+                break;
+            case 2:
+                ops.literal('T');
+                break;
+            case 3:
+                ops.literal('G');
+                break;
+            case 4:
+                if (bis.read(1) == 0) {
+                    ops.literal('N');
+                } else {
+                    int n = bis.read(MAXIMUM_NUMBER_BITS);
+                    ops.fill(n);
+                    nSkipped += n;
+                }
+                break;
         }
+        return b;
     }
 
-    private void write() throws Exception {
-        if (!hasComments) {
-            dcmpWriter.write(ref);
-        } else {
-            for (int i = 0; i < ref.length; i++) {
-                addLineBreaks();
+    /**
+     * Writes length bases of the reference file starting at position
+     */
+    private void copy(long position, int length) throws Exception {
+        while (length > 0) {
+            ByteBuffer bases = reference.slice(position, length);
+            int n = bases.remaining();
+            write(bases);
+            position += n;
+            length -= n;
+        }
+    }
 
-                dcmpWriter.write(ref[i]);
-                totalCounter++;
-                charCounter = (charCounter + 1) % JDNA.FASTA_LINE_SIZE;
-            }
+    /**
+     * Writes a run of length N bases, the only runs the decoder fills
+     */
+    private void fill(int length) throws Exception {
+        while (length > 0) {
+            int n = Math.min(length, N_RUN.length);
+            write(ByteBuffer.wrap(N_RUN, 0, n));
+            length -= n;
         }
     }
 
-    private void addLineBreaks() throws Exception {
-        if (sizes.size() > 0 && totalCounter == sizes.get(0)) {
-            charCounter = 0;
-            sizes.remove(0);
+    private void write(ByteBuffer bases) throws Exception {
+        int len = bases.remaining();
+        if (mask != null && len > buffer.capacity() && mask.changes(outPos, len)) {
+            //the mask is put back on a copy, so long matches go in slices the size of buffer
+            int limit = bases.limit();
+            while (bases.position() < limit) {
+                bases.limit(Math.min(limit, bases.position() + buffer.capacity()));
+                ByteBuffer slice = bases.slice();
+                bases.position(bases.limit());
+                bases.limit(limit);
+                write(slice);
+            }
+            return;
         }
-        if (charCounter == 0) {
-            if (positions.size() > 0 && positions.get(0) == lineCounter) {
-                positions.remove();
-                if (lineCounter != 0) {
-                    dcmpWriter.write('\n');
+        if (fasta == null) {
+            //only the part inside the region
+            long skip = Math.max(0, regionStart - outPos);
+            long keep = Math.min(len, regionEnd - outPos) - skip;
+            if (keep > 0) {
+                bases.position(bases.position() + (int) skip);
+                bases.limit(bases.position() + (int) keep);
+                if (mask != null) {
+                    bases = mask.apply(bases, outPos + skip);
+                }
+                if (keep < DIRECT_MATCH) {
+                    if (keep > buffer.remaining()) {
+                        flushBuffer();
+                    }
+                    buffer.put(bases);
+                } else {
+                    flushBuffer();
+                    while (bases.hasRemaining()) {
+                        output.write(bases);
+                    }
                 }
-                dcmpWriter.write(comments.remove().getBytes());
             }
-            dcmpWriter.write('\n');
-            lineCounter++;
+        } else {
+            fasta.write(mask == null ? bases : mask.apply(bases, outPos));
         }
+        outPos += len;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,266 @@
+package kmercompression;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Line layout of a FASTA input: its records, each with its header and the
+ * lengths of its sequence lines as runs of equal lengths. A record wrapped
+ * at a fixed width is a run of full lines and one for the last line; blank
+ * and irregular lines are runs of their own. Line endings are runs of LF and
+ * CRLF over all lines, headers included. Stored in the container as varints,
+ * so the bases can be decompressed back into the same lines.
+ *
+ * Copyright (c) 2014, Fernando Alves <falves@lasige.di.fc.ul.pt>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+class FastaLayout {
+
+    private static final int FINAL_NEWLINE = 1;
+    private static final int CRLF = 2;
+    private static final int MIXED_ENDINGS = 4;
+    private static final int INITIAL_RUNS = 4;
+
+    /**
+     * A header, null for the bases before the first one, and the runs of
+     * lines after it
+     */
+    static class Record {
+
+        final byte[] header;
+        int[] lengths = new int[INITIAL_RUNS];
+        long[] counts = new long[INITIAL_RUNS];
+        int runs;
+
+        Record(byte[] header) {
+            this.header = header;
+        }
+
+        void add(int length, long count) {
+            if (runs > 0 && lengths[runs - 1] == length) {
+                counts[runs - 1] += count;
+            } else {
+                if (runs == lengths.length) {
+                    lengths = Arrays.copyOf(lengths, runs * 2);
+                    counts = Arrays.copyOf(counts, runs * 2);
+                }
+                lengths[runs] = length;
+                counts[runs] = count;
+                runs++;
+            }
+        }
+    }
+    //
+    final List<Record> records = new ArrayList<>();
+    boolean finalNewline = true;
+    //line endings in input order, as runs of LF and CRLF in turn starting
+    //with LF; the lines past the last run end in LF
+    long[] endings = new long[INITIAL_RUNS];
+    int endingRuns;
+
+    /**
+     * Starts a record with header, given without the leading >
+     */
+    void header(byte[] header) {
+        records.add(new Record(header));
+    }
+
+    /**
+     * Adds a sequence line of length bases, 0 for a blank line
+     */
+    void line(int length) {
+        if (records.isEmpty()) {
+            records.add(new Record(null));
+        }
+        records.get(records.size() - 1).add(length, 1);
+    }
+
+    /**
+     * Adds the ending of the next line, header or not
+     */
+    void lineEnd(boolean crlf) {
+        if (endingRuns > 0 && ((endingRuns - 1) & 1) == (crlf ? 1 : 0)) {
+            endings[endingRuns - 1]++;
+        } else {
+            if (endingRuns == 0 && crlf) {
+                ending(0);
+            }
+            ending(1);
+        }
+    }
+
+    private void ending(long count) {
+        if (endingRuns == endings.length) {
+            endings = Arrays.copyOf(endings, endingRuns * 2);
+        }
+        endings[endingRuns++] = count;
+    }
+
+    /**
+     * Bases before the record named name and bases in it, or null if there is
+     * no such record. The name of a record is its header up to the first blank.
+     */
+    long[] locate(String name) {
+        long offset = 0;
+        for (Record record : records) {
+            long bases = 0;
+            for (int i = 0; i < record.runs; i++) {
+                bases += record.lengths[i] * record.counts[i];
+            }
+            if (record.header != null
+                    && new String(record.header, StandardCharsets.ISO_8859_1).split("\\s", 2)[0].equals(name)) {
+                return new long[]{offset, bases};
+            }
+            offset += bases;
+        }
+        return null;
+    }
+
+    byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        //a single kind of line ending only takes a flag
+        boolean mixed = endingRuns > 2 || (endingRuns == 2 && endings[0] > 0);
+        boolean crlf = !mixed && endingRuns == 2;
+        out.write((finalNewline ? FINAL_NEWLINE : 0) | (crlf ? CRLF : 0) | (mixed ? MIXED_ENDINGS : 0));
+        writeVarint(out, records.size());
+        for (Record record : records) {
+            if (record.header == null) {
+                writeVarint(out, 0);
+            } else {
+                writeVarint(out, record.header.length + 1);
+                out.write(record.header, 0, record.header.length);
+            }
+            writeVarint(out, record.runs);
+            for (int i = 0; i < record.runs; i++) {
+                writeVarint(out, record.lengths[i]);
+                writeVarint(out, record.counts[i]);
+            }
+        }
+        if (mixed) {
+            writeVarint(out, endingRuns);
+            for (int i = 0; i < endingRuns; i++) {
+                writeVarint(out, endings[i]);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    static FastaLayout read(ByteBuffer in) {
+        FastaLayout layout = new FastaLayout();
+        int flags = in.get();
+        layout.finalNewline = (flags & FINAL_NEWLINE) != 0;
+        long count = readVarint(in);
+        for (long r = 0; r < count; r++) {
+            int length = (int) readVarint(in);
+            byte[] header = null;
+            if (length > 0) {
+                header = new byte[length - 1];
+                in.get(header);
+            }
+            Record record = new Record(header);
+            long runs = readVarint(in);
+            for (long i = 0; i < runs; i++) {
+                record.add((int) readVarint(in), readVarint(in));
+            }
+            layout.records.add(record);
+        }
+        if ((flags & MIXED_ENDINGS) != 0) {
+            long runs = readVarint(in);
+            for (long i = 0; i < runs; i++) {
+                layout.ending(readVarint(in));
+            }
+        } else if ((flags & CRLF) != 0) {
+            layout.ending(0);
+            layout.ending(Long.MAX_VALUE);
+        }
+        return layout;
+    }
+
+    /**
+     * Layout of the .ccom file of older versions, which kept each header with
+     * the number of bases before it and wrapped every line at
+     * JDNA.FASTA_LINE_SIZE
+     */
+    static FastaLayout fromComments(File comments) throws IOException {
+        FastaLayout layout = new FastaLayout();
+        BufferedReader reader = new BufferedReader(new FileReader(comments));
+        try {
+            String line;
+            long previous = 0;
+            while ((line = reader.readLine()) != null) {
+                String[] splitted = line.split(JDNA.COMMENT_SEPARATOR);
+                long bases = Long.parseLong(splitted[2]);
+                if (!layout.records.isEmpty()) {
+                    layout.wrap(bases - previous);
+                }
+                layout.header(splitted[1].substring(1).getBytes(StandardCharsets.ISO_8859_1));
+                previous = bases;
+            }
+        } finally {
+            reader.close();
+        }
+        //the last record wraps whatever bases are left
+        layout.line(JDNA.FASTA_LINE_SIZE);
+        layout.records.get(layout.records.size() - 1).counts[0] = Long.MAX_VALUE;
+        return layout;
+    }
+
+    private void wrap(long bases) {
+        Record record = records.get(records.size() - 1);
+        record.add(JDNA.FASTA_LINE_SIZE, bases / JDNA.FASTA_LINE_SIZE);
+        if (bases % JDNA.FASTA_LINE_SIZE != 0) {
+            record.add((int) (bases % JDNA.FASTA_LINE_SIZE), 1);
+        }
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarint(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+}
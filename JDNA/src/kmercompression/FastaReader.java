@@ -0,0 +1,187 @@
+package kmercompression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Byte level FASTA scanner. Reads the input in large byte buffers, drops line
+ * breaks and takes the header lines out, appending the bases straight into a
+ * PackedSequence and the lines to a FastaLayout. The scan carries on where the
+ * last block stopped, even in the middle of a line.
+ *
+ * Copyright (c) 2014, Fernando Alves <falves@lasige.di.fc.ul.pt>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+class FastaReader {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    //carriage returns only round-trip as part of a CRLF line ending
+    private static final String STRAY_CR = "carriage return not followed by a line feed in the FASTA input";
+    //
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+    private boolean ended;
+    //
+    private final FastaLayout layout = new FastaLayout();
+    private boolean lineStart = true;
+    private int lineLength;
+    private boolean inHeader;
+    //a carriage return just read, which has to end its line
+    private boolean carriageReturn;
+    private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+
+    /**
+     * @param bufferSize most bytes read from in at once
+     */
+    FastaReader(InputStream in, int bufferSize) {
+        this.in = in;
+        buffer = new byte[Math.min(BUFFER_SIZE, bufferSize)];
+    }
+
+    /**
+     * Clears sequence and fills it with up to max bases.
+     * @return the number of bases read, or -1 if the input had already ended
+     */
+    int read(PackedSequence sequence, int max) throws IOException {
+        sequence.clear();
+        int read = 0;
+
+        while (read < max && fill()) {
+            if (inHeader) {
+                scanHeader();
+                continue;
+            }
+            byte b = buffer[position];
+            if (carriageReturn && b != '\n') {
+                throw new IOException(STRAY_CR);
+            }
+            if (b == '\n') {
+                layout.line(lineLength);
+                layout.lineEnd(carriageReturn);
+                carriageReturn = false;
+                lineLength = 0;
+                lineStart = true;
+                position++;
+            } else if (b == '\r') {
+                carriageReturn = true;
+                position++;
+            } else if (b == '>' && lineStart) {
+                inHeader = true;
+                position++;
+            } else {
+                //bases up to the end of the line, the buffer or the block
+                int end = position;
+                int stop = Math.min(limit, position + max - read);
+                while (end < stop && buffer[end] != '\n' && buffer[end] != '\r') {
+                    end++;
+                }
+                sequence.append(buffer, position, end - position);
+                read += end - position;
+                lineLength += end - position;
+                position = end;
+                lineStart = false;
+            }
+        }
+        return read == 0 && max > 0 ? -1 : read;
+    }
+
+    /**
+     * Layout of the lines read so far, complete once read has returned less
+     * than it was asked for
+     */
+    FastaLayout layout() {
+        return layout;
+    }
+
+    private void scanHeader() {
+        int end = position;
+        while (end < limit && buffer[end] != '\n') {
+            end++;
+        }
+        header.write(buffer, position, end - position);
+        position = end;
+        if (end < limit || ended) {
+            int length = header.size();
+            byte[] text = header.toByteArray();
+            //a header the input ends in keeps its carriage return, there is no line break to write it with
+            boolean crlf = end < limit && length > 0 && text[length - 1] == '\r';
+            if (crlf) {
+                length--;
+            }
+            layout.header(Arrays.copyOf(text, length));
+            header.reset();
+            inHeader = false;
+            if (end < limit) {
+                layout.lineEnd(crlf);
+                position++;
+            } else {
+                layout.finalNewline = false;
+            }
+            lineStart = true;
+        }
+    }
+
+    /**
+     * Ends the layout at the end of the input
+     */
+    private void finish() throws IOException {
+        if (carriageReturn) {
+            throw new IOException(STRAY_CR);
+        }
+        if (inHeader) {
+            scanHeader();
+        } else if (!lineStart) {
+            layout.line(lineLength);
+            layout.finalNewline = false;
+        }
+    }
+
+    /**
+     * Makes sure there are bytes left to scan
+     * @return false once the input has ended
+     */
+    private boolean fill() throws IOException {
+        while (position == limit) {
+            if (ended) {
+                return false;
+            }
+            int n = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (n == -1) {
+                limit = 0;
+                ended = true;
+                finish();
+            } else {
+                limit = n;
+            }
+        }
+        return true;
+    }
+}
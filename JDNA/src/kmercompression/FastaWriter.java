@@ -0,0 +1,186 @@
+package kmercompression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes decompressed bases back into the lines of a FastaLayout. Bases are
+ * copied into a large output buffer a line segment at a time; headers and
+ * line breaks only go in between segments.
+ *
+ * Copyright (c) 2014, Fernando Alves <falves@lasige.di.fc.ul.pt>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+class FastaWriter {
+
+    private static final byte[] HEADER = {'>'};
+    private static final byte[] LF = {'\n'};
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final OutputStream out;
+    private final FastaLayout layout;
+    //output gathered here, bases copied in straight from the decoder
+    private final byte[] buffer = new byte[JDNA.ONEMB];
+    private int count;
+    //the next line of the layout: its record, run, and lines left in the run
+    private int record = -1;
+    private int run;
+    private long left;
+    //bases still to write on the current line
+    private int lineLeft;
+    private boolean started;
+    //run of line endings of the next line break, and line breaks left in it
+    private int endingRun = -1;
+    private long endingLeft;
+
+    FastaWriter(OutputStream out, FastaLayout layout) {
+        this.out = out;
+        this.layout = layout;
+    }
+
+    void write(ByteBuffer bases) throws IOException {
+        while (bases.hasRemaining()) {
+            if (lineLeft == 0) {
+                nextLine();
+            }
+            if (count == buffer.length) {
+                flush();
+            }
+            int n = Math.min(Math.min(lineLeft, bases.remaining()), buffer.length - count);
+            bases.get(buffer, count, n);
+            count += n;
+            lineLeft -= n;
+        }
+    }
+
+    /**
+     * Writes the headers and blank lines left after the last base, and the
+     * last line break
+     */
+    void close() throws IOException {
+        //the last record of an older .ccom has no end, it stops at the first line with bases
+        while (advance() && layout.records.get(record).lengths[run] == 0) {
+            startLine();
+        }
+        if (started && layout.finalNewline) {
+            put(newline());
+        }
+        flush();
+        out.close();
+    }
+
+    /**
+     * Starts the next line with bases, writing the headers and blank lines
+     * before it
+     */
+    private void nextLine() throws IOException {
+        while (true) {
+            if (!advance()) {
+                throw new IOException("the FASTA layout ends before the bases");
+            }
+            startLine();
+            int length = layout.records.get(record).lengths[run];
+            if (length > 0) {
+                lineLeft = length;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves to the next sequence line, writing the header of any record
+     * started on the way
+     * @return false if the layout has no more lines
+     */
+    private boolean advance() throws IOException {
+        if (record >= 0) {
+            left--;
+        }
+        while (record < 0 || left == 0) {
+            FastaLayout.Record current = record < 0 ? null : layout.records.get(record);
+            if (current != null && run + 1 < current.runs) {
+                run++;
+            } else if (record + 1 < layout.records.size()) {
+                record++;
+                run = 0;
+                current = layout.records.get(record);
+                if (current.header != null) {
+                    startLine();
+                    put(HEADER);
+                    put(current.header);
+                }
+                if (current.runs == 0) {
+                    left = 0;
+                    continue;
+                }
+            } else {
+                return false;
+            }
+            left = current.counts[run];
+        }
+        return true;
+    }
+
+    private void startLine() throws IOException {
+        if (started) {
+            put(newline());
+        }
+        started = true;
+    }
+
+    /**
+     * Ending of the next line break
+     */
+    private byte[] newline() {
+        while (endingLeft == 0 && endingRun + 1 < layout.endingRuns) {
+            endingRun++;
+            endingLeft = layout.endings[endingRun];
+        }
+        if (endingLeft == 0) {
+            return LF;
+        }
+        endingLeft--;
+        return (endingRun & 1) == 0 ? LF : CRLF;
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.length - count) {
+            flush();
+            if (bytes.length > buffer.length) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void flush() throws IOException {
+        out.write(buffer, 0, count);
+        count = 0;
+    }
+}
@@ -1,8 +1,17 @@
 package kmercompression;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.LinkedList;
-import java.util.zip.GZIPOutputStream;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 
 /**
  *
@@ -36,39 +45,77 @@ public class JDNA {
     
     private static long blockSize = 1024 * 1024 * 250; //1,5GB -> 1024 * 512 * 3
     static final int ONEMB = 1024 * 1024;
-    private static final int FASTA_LINE_SIZE_MARGIN = 100;
+    //input and output buffers of each COMPRESS_BATCH input, a group of which is open at once
+    private static final int BATCH_BUFFER = 1 << 16;
     static final int FASTA_LINE_SIZE = 60;
     static int KMER_SIZE = 22;
     static int DECOMPRESS_MEM = ONEMB;
     static int SEARCH_WINDOW = 120;
     static int INDEX_WINDOW = 200;
+    static int THREADS = 1;
+    static int SEGMENTS = 1;
+    static boolean PREFETCH = true;
+    static int BATCH_GROUP = 128;
+    static long REFERENCE_CACHE = 1024L * ONEMB;
+    static int CHUNK_SIZE = ONEMB;
+    static Codec CODEC = Codec.get(Codec.DEFLATE, Codec.DEFAULT_LEVEL);
+    static String REFERENCE_INDEX = null;
     
     static final String COMMENT_SEPARATOR = "!";
+    //INPUT or OUTPUT given as - is stdin or stdout
+    static final String STREAM = "-";
+    static final PrintStream STDOUT = System.out;
+    //pool threads are daemons, so a failed compression still ends the JVM
+    private static final ThreadFactory WORKERS = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = Executors.defaultThreadFactory().newThread(r);
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
 
     /**
      * @param args the command line arguments
      */
     public static void main(String[] args) throws Exception {
-        if (args.length != 4) {
+        if (args.length != 4 && !(args.length == 5 && args[0].equalsIgnoreCase("DECOMPRESS_REGION"))
+                && !(args.length == 3 && (args[0].equalsIgnoreCase("BUILD_INDEX")
+                        || args[0].equalsIgnoreCase("COMPRESS_BATCH")))) {
             printUsage();
             System.exit(0);
         }
 
         File refFile = new File(args[1]);
         File inputFile = new File(args[2]);
-        File outputFile = new File(args[3]);
+        File outputFile = args.length > 3 ? new File(args[3]) : null;
+        if (outputFile != null && isStream(outputFile)) {
+            //stdout carries the output, so the progress goes to stderr
+            System.setOut(System.err);
+        }
         
         File config = new File("config.ini");
         if(config.exists()){
             BufferedReader configReader = new BufferedReader(new FileReader(config));
-            KMER_SIZE = Integer.parseInt(configReader.readLine().split("=")[1]);
-            SEARCH_WINDOW = Integer.parseInt(configReader.readLine().split("=")[1]);
-            INDEX_WINDOW = Integer.parseInt(configReader.readLine().split("=")[1]);
-            DECOMPRESS_MEM = Integer.parseInt(configReader.readLine().split("=")[1]) * ONEMB;
-            blockSize = Integer.parseInt(configReader.readLine().split("=")[1]) * ONEMB;
+            String line;
+            while ((line = configReader.readLine()) != null) {
+                String[] option = line.split("=");
+                if (option.length == 2) {
+                    setOption(option[0].trim(), option[1].trim());
+                }
+            }
             configReader.close();
         }
 
+        if (args[0].equalsIgnoreCase("BUILD_INDEX")) {
+            buildIndex(refFile, inputFile);
+            return;
+        }
+        if (args[0].equalsIgnoreCase("COMPRESS_BATCH")) {
+            compressBatch(refFile, inputFile);
+            return;
+        }
+
         long bigger = refFile.length() > inputFile.length() ? refFile.length() : inputFile.length();
         int effectiveSize = (int) (bigger < blockSize ? bigger : blockSize);
         int maxDigits = numDigitsB(effectiveSize);
@@ -77,176 +124,594 @@ public class JDNA {
             compress(refFile, inputFile, outputFile, effectiveSize, maxDigits);
         } else if (args[0].equalsIgnoreCase("DECOMPRESS")) {
             decompress(refFile, inputFile, outputFile, effectiveSize, maxDigits);
+        } else if (args[0].equalsIgnoreCase("DECOMPRESS_REGION")) {
+            decompressRegion(refFile, inputFile, outputFile, args[4]);
         } else {
             System.out.println("Command not recognized. Program will exit.\n");
             printUsage();
         }
     }
 
+    private static void setOption(String key, String value) {
+        switch (key) {
+            case "kmer_size":
+                KMER_SIZE = Integer.parseInt(value);
+                break;
+            case "search_window":
+                SEARCH_WINDOW = Integer.parseInt(value);
+                break;
+            case "index_window":
+                INDEX_WINDOW = Integer.parseInt(value);
+                break;
+            case "dcmp_mem":
+                DECOMPRESS_MEM = Integer.parseInt(value) * ONEMB;
+                break;
+            case "block_size":
+                blockSize = Integer.parseInt(value) * ONEMB;
+                break;
+            case "threads":
+                THREADS = Math.max(1, Integer.parseInt(value));
+                break;
+            case "segments":
+                SEGMENTS = Math.max(1, Integer.parseInt(value));
+                break;
+            case "prefetch":
+                PREFETCH = Boolean.parseBoolean(value);
+                break;
+            case "batch_group":
+                BATCH_GROUP = Math.max(1, Integer.parseInt(value));
+                break;
+            case "reference_cache":
+                REFERENCE_CACHE = (long) Integer.parseInt(value) * ONEMB;
+                break;
+            case "chunk_size":
+                CHUNK_SIZE = Math.max(1, Integer.parseInt(value)) * ONEMB;
+                break;
+            case "codec":
+                CODEC = Codec.forName(value);
+                break;
+            case "reference_index":
+                REFERENCE_INDEX = value;
+                break;
+            default:
+                System.err.println("Unknown option in config.ini: " + key);
+        }
+    }
+
     private static void compress(File refFile, File inputFile, File outputFile, int effectiveSize, int maxDigits)
             throws Exception {
 
         int readRef;
-        int readInput;
-        int lineCounter = 0, charCounter = 0;
-        StringBuilder inputBuffer = null;
-        StringBuilder surplus = null;
-
-        boolean inpHasComments = false;
-        BufferedWriter commentWriter = null;
-
-        String line = inputFile.getName();
-        int index = line.lastIndexOf(".");
-        if(index != -1 && index != 0){
-            String name, ext;
-            name = line.substring(0, index);
-            ext = line.substring(index+1);
-
-            if (ext.equals("fasta")) {
-                inpHasComments = true;
-                commentWriter = new BufferedWriter(new FileWriter(name + ".ccom"));
-                inputBuffer = new StringBuilder((int)blockSize + FASTA_LINE_SIZE_MARGIN);
-                surplus = new StringBuilder();
-            }
-        }
+        int readInput = 0;
 
         boolean done = false;
-        boolean inputDone = false;
-
-        BufferedReader refReader = new BufferedReader(new FileReader(refFile));
-        BufferedReader inputReader = new BufferedReader(new FileReader(inputFile));
-        CompressionWriter outputWriter = new CompressionWriter(new BitOutputStream(new BufferedOutputStream(
-                new GZIPOutputStream(new FileOutputStream(outputFile)), ONEMB*10)), maxDigits);
 
-        Compressor compressor = new Compressor(effectiveSize);
+        InputStream refReader = new BufferedInputStream(new FileInputStream(refFile), ONEMB);
+        ReferenceIndex referenceIndex = openIndex(refFile, effectiveSize);
+        Sample sample = new Sample(inputFile, outputFile, effectiveSize, maxDigits);
+        CompressionWriter outputWriter = null;
+        int blockNumber = 0;
+
+        //with several threads, blocks are compressed in memory and written in order.
+        //Each block is read into a reference and input buffer pair and handed to
+        //an idle compressor; with prefetch a spare pair takes the next block
+        //while the others compress, which a single block has no use for.
+        boolean prefetch = PREFETCH && refFile.length() > effectiveSize;
+        ExecutorService pool = null;
+        Compressor.SegmentPool segmentPool = null;
+        LinkedList<Future<CompressionWriter>> pending = new LinkedList<>();
+        BlockingQueue<Compressor> idle = new LinkedBlockingQueue<>();
+        BlockingQueue<PackedSequence[]> buffers = new LinkedBlockingQueue<>();
+        if (SEGMENTS > 1) {
+            segmentPool = new Compressor.SegmentPool(SEGMENTS, WORKERS);
+        }
+        if (THREADS > 1 || prefetch) {
+            pool = Executors.newFixedThreadPool(THREADS, WORKERS);
+        }
+        for (int i = 0; i < THREADS; i++) {
+            Compressor compressor = new Compressor(effectiveSize, segmentPool);
+            idle.add(compressor);
+            buffers.add(new PackedSequence[]{compressor.reference, compressor.input});
+        }
+        if (prefetch) {
+            buffers.add(new PackedSequence[]{new PackedSequence(effectiveSize), new PackedSequence(effectiveSize)});
+        }
 
-        char[] input = compressor.input;
-        char[] ref = compressor.reference;
+        Compressor compressor;
+        PackedSequence[] pair;
+        PackedSequence input;
+        PackedSequence ref;
 
         long et, st;
-        long bs, be;
-
-        LinkedList<String> comments = new LinkedList<>();
 
         st = System.currentTimeMillis();
 
         do {
+            pair = buffers.take();
+            ref = pair[0];
+            input = pair[1];
+
             readInput = 0;
-            readRef = refReader.read(ref);
-            if (inputBuffer != null)
-                inputBuffer.delete(0, inputBuffer.length());
+            readRef = ref.read(refReader, effectiveSize);
             if (readRef != effectiveSize)
                 done = true;
 
             if (readRef != -1) {
-                compressor.init(readRef);
+                reportReplaced(ref);
+                if (ref.folded() > 0) {
+                    sample.referenceFolded();
+                }
+                readInput = sample.read(input);
+                if (sample.inputDone) {
+                    done = true;
+                }
+            }
 
-                if (inpHasComments) {
-                    if(surplus.length() > 0){
-                        inputBuffer.append(surplus);
-                        surplus.delete(0, surplus.length());
+            if (readRef == -1 || readInput == -1) {
+                //nothing left to compress, the remainder gets an empty literal chunk
+                readInput = 0;
+                buffers.add(pair);
+            } else {
+                compressor = idle.take();
+                compressor.use(ref, input);
+                compressor.init(readRef, referenceIndex == null ? null : referenceIndex.block(blockNumber));
+                blockNumber++;
+
+                CompressionWriter writer = sample.writer(readInput);
+
+                if (pool != null && !done) {
+                    pending.add(pool.submit(new BlockTask(compressor, writer, readInput, false, idle, buffers)));
+                    while (!pending.isEmpty() && pending.getFirst().isDone()) {
+                        sample.write(pending.removeFirst().get().chunks());
                     }
-                    while (readInput < effectiveSize && inputReader.ready()) {
-                        line = inputReader.readLine();
-                        if(line.length() != 0){
-                            if (line.charAt(0) == '>') {
-                                comments.add(lineCounter+COMMENT_SEPARATOR+line+COMMENT_SEPARATOR+charCounter+"\n");
-                                charCounter = 0;
-                            } else {
-                                inputBuffer.append(line);
-                                readInput += line.length();
-                                charCounter += line.length();
-                            }
-                            lineCounter++;
-                        }
+                } else {
+                    writeAll(pending, sample);
+                    compressBlock(compressor, writer, readInput);
+                    if (done) {
+                        //the last block stays open for the remainder of the input
+                        outputWriter = writer;
+                    } else {
+                        writer.endChunk(readInput, false);
+                        sample.write(writer.chunks());
                     }
+                    buffers.add(pair);
+                    idle.add(compressor);
+                }
+            }
+        } while (!done);
 
-                    input = inputBuffer.toString().toCharArray();
-                    surplus = inputBuffer.delete(0, effectiveSize);
-                    readInput = input.length - surplus.length();
-                    for(String s : comments){
-                        commentWriter.write(s, 0, s.length());
+        writeAll(pending, sample);
+        if (pool != null) {
+            pool.shutdown();
+        }
+        if (segmentPool != null) {
+            segmentPool.shutdown();
+        }
+
+        sample.finish(outputWriter, readInput, buffers.take()[1]);
+        if (referenceIndex != null) {
+            referenceIndex.close();
+        }
+        
+        et = System.currentTimeMillis();
+        
+        System.out.println("INDEX & COMPRESS TIME: " + (et - st) / 1000 + "s (" + (et - st) + ")");
+    }
+
+    /**
+     * Compresses every input listed in manifest, one INPUT OUTPUT pair per
+     * line, in groups of BATCH_GROUP inputs. Each reference block is read
+     * once per group and all inputs of the group are compressed against it,
+     * by THREADS compressors sharing it, before the next is read.
+     */
+    private static void compressBatch(File refFile, File manifest) throws Exception {
+        List<File[]> pairs = readManifest(manifest);
+        if (pairs.isEmpty()) {
+            System.out.println(manifest.getName() + " lists no INPUT OUTPUT pairs.\n");
+            return;
+        }
+
+        //the reference buffer fits the largest input; a smaller one is
+        //compressed with the block size COMPRESS picks for it alone, which a
+        //reference shorter than block_size fits in one block all the same
+        long bigger = refFile.length();
+        for (File[] pair : pairs) {
+            bigger = Math.max(bigger, pair[0].length());
+        }
+        int effectiveSize = (int) (bigger < blockSize ? bigger : blockSize);
+
+        ReferenceIndex referenceIndex = openIndex(refFile, effectiveSize);
+        PackedSequence ref = new PackedSequence(effectiveSize);
+        //only a manifest of several groups reads the reference more than once
+        ReferenceCache cache = new ReferenceCache(pairs.size() > BATCH_GROUP ? REFERENCE_CACHE : 0);
+
+        //the compressors only read the reference, so they all share one copy
+        ExecutorService pool = null;
+        Compressor.SegmentPool segmentPool = null;
+        BlockingQueue<Compressor> idle = new LinkedBlockingQueue<>();
+        if (SEGMENTS > 1) {
+            segmentPool = new Compressor.SegmentPool(SEGMENTS, WORKERS);
+        }
+        if (THREADS > 1) {
+            pool = Executors.newFixedThreadPool(THREADS, WORKERS);
+        }
+        for (int i = 0; i < THREADS; i++) {
+            idle.add(new Compressor(effectiveSize, segmentPool, ref));
+        }
+
+        long et, st;
+
+        st = System.currentTimeMillis();
+
+        //every input of a group is open until the reference ends, so the
+        //groups keep the memory and file descriptors of a long manifest bounded
+        for (int first = 0; first < pairs.size(); first += BATCH_GROUP) {
+            List<File[]> group = pairs.subList(first, Math.min(pairs.size(), first + BATCH_GROUP));
+            compressGroup(refFile, group, effectiveSize, cache, referenceIndex, ref, pool, idle);
+        }
+
+        if (pool != null) {
+            pool.shutdown();
+        }
+        if (segmentPool != null) {
+            segmentPool.shutdown();
+        }
+        if (referenceIndex != null) {
+            referenceIndex.close();
+        }
+
+        et = System.currentTimeMillis();
+
+        System.out.println("BATCH TIME: " + pairs.size() + " inputs in " + (et - st) / 1000 + "s (" + (et - st) + ")");
+        if (cache.hits() > 0) {
+            System.out.println("REFERENCE BLOCKS FROM CACHE: " + cache.hits());
+        }
+    }
+
+    /**
+     * Compresses the inputs of one COMPRESS_BATCH group, reading the reference
+     * into ref block by block through cache
+     */
+    private static void compressGroup(File refFile, List<File[]> pairs, int effectiveSize, ReferenceCache cache,
+            ReferenceIndex referenceIndex, PackedSequence ref, ExecutorService pool, BlockingQueue<Compressor> idle)
+            throws Exception {
+        int readRef;
+        boolean done = false;
+
+        int blockNumber = 0;
+
+        List<Sample> samples = new ArrayList<>(pairs.size());
+        for (File[] pair : pairs) {
+            long size = Math.max(refFile.length(), pair[0].length());
+            int sampleSize = (int) (size < blockSize ? size : blockSize);
+            samples.add(new Sample(pair[0], pair[1], sampleSize, numDigitsB(sampleSize), BATCH_BUFFER));
+        }
+        //writer of each sample's last block, left open for the rest of its input
+        CompressionWriter[] outputWriters = new CompressionWriter[samples.size()];
+        int[] outputEnds = new int[samples.size()];
+
+        Compressor compressor;
+        LinkedList<Future<CompressionWriter>> pending = new LinkedList<>();
+        LinkedList<Integer> pendingSamples = new LinkedList<>();
+
+        do {
+            readRef = cache.read(refFile, blockNumber, effectiveSize, ref);
+            if (readRef != effectiveSize)
+                done = true;
+
+            if (readRef != -1) {
+                reportReplaced(ref);
+                ReferenceIndex.Block block = referenceIndex == null ? null : referenceIndex.block(blockNumber);
+                blockNumber++;
+
+                for (int i = 0; i < samples.size(); i++) {
+                    Sample sample = samples.get(i);
+                    if (sample.inputDone) {
+                        continue;
                     }
-                    compressor.input = input;
-                } else {
-                    readInput = inputReader.read(input);
-                }
+                    if (ref.folded() > 0) {
+                        sample.referenceFolded();
+                    }
+                    compressor = idle.take();
+                    int readInput = sample.read(compressor.input);
+                    if (readInput == -1) {
+                        idle.add(compressor);
+                        continue;
+                    }
+                    compressor.init(readRef, block, sample.blockSize);
 
-                bs = System.currentTimeMillis();
-                if (readInput != -1) {
-                    compressor.compress(outputWriter, readInput);
-                }
-                if (readInput != effectiveSize) {
-                    done = true;
-                    inputDone = true;
+                    CompressionWriter writer = sample.writer(readInput);
+                    boolean last = done || sample.inputDone;
+                    if (last) {
+                        outputWriters[i] = writer;
+                        outputEnds[i] = readInput;
+                    }
+
+                    BlockTask task = new BlockTask(compressor, writer, readInput, last, idle);
+                    if (pool != null) {
+                        pending.add(pool.submit(task));
+                    } else {
+                        FutureTask<CompressionWriter> future = new FutureTask<>(task);
+                        future.run();
+                        pending.add(future);
+                    }
+                    pendingSamples.add(i);
                 }
-                be = System.currentTimeMillis();
-                System.out.println("COMPRESS TIME: " + (be - bs) / 1000 + "s (" + (be - bs) + ")");
-                System.out.println("===================================\n");
-                if (!done) {
-                    outputWriter.writeChange();
+
+                //the next reference block overwrites this one, so every input is done with it first
+                while (!pending.isEmpty()) {
+                    CompressionWriter writer = pending.removeFirst().get();
+                    int i = pendingSamples.removeFirst();
+                    if (outputWriters[i] != writer) {
+                        samples.get(i).write(writer.chunks());
+                    }
                 }
             }
         } while (!done);
 
-        if (!inputDone) {
-            done = false;
-            do {
-                readInput = inputReader.read(input);
-                if (readInput == -1) {
-                    done = true;
-                } else {
-                    for (int i = 0; i < readInput; i++) {
-                        outputWriter.writeChar(input[i]);
-                    }
-                    if (readInput != effectiveSize) {
-                        done = true;
-                    }
+        PackedSequence input = idle.peek().input;
+        for (int i = 0; i < samples.size(); i++) {
+            samples.get(i).finish(outputWriters[i], outputEnds[i], input);
+        }
+    }
+
+    /**
+     * Reads the INPUT OUTPUT pairs of a COMPRESS_BATCH manifest, skipping
+     * empty lines and lines starting with #
+     */
+    private static List<File[]> readManifest(File manifest) throws IOException {
+        List<File[]> pairs = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(manifest));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.charAt(0) == '#') {
+                continue;
+            }
+            String[] pair = line.split("\\s+");
+            if (pair.length != 2) {
+                System.err.println("Ignoring manifest line, expected INPUT OUTPUT: " + line);
+                continue;
+            }
+            pairs.add(new File[]{new File(pair[0]), new File(pair[1])});
+        }
+        reader.close();
+        return pairs;
+    }
+
+    /**
+     * Writes the persistent k-mer index of a reference, for the
+     * reference_index option
+     */
+    private static void buildIndex(File refFile, File indexFile) throws Exception {
+        long st, et;
+
+        st = System.currentTimeMillis();
+        ReferenceIndex.build(refFile, indexFile, KMER_SIZE, (int) blockSize);
+        et = System.currentTimeMillis();
+        System.out.println("INDEX TIME: " + (et - st) / 1000 + "s (" + (et - st) + ")");
+    }
+
+    /**
+     * Opens the index given by the reference_index option, if it was built
+     * for this reference with the current settings
+     */
+    private static ReferenceIndex openIndex(File refFile, int effectiveSize) throws IOException {
+        if (REFERENCE_INDEX == null) {
+            return null;
+        }
+        ReferenceIndex index = new ReferenceIndex(new File(REFERENCE_INDEX));
+        if (!index.fits(refFile, effectiveSize, KMER_SIZE)) {
+            System.err.println(REFERENCE_INDEX + " was built from another reference or with another kmer_size"
+                    + " or block_size, indexing on demand.");
+            index.close();
+            return null;
+        }
+        return index;
+    }
+
+    private static void compressBlock(Compressor compressor, CompressionWriter writer, int readInput)
+            throws Exception {
+        long bs, be;
+
+        bs = System.currentTimeMillis();
+        if (readInput != -1) {
+            compressor.compress(writer, readInput);
+        }
+        be = System.currentTimeMillis();
+        System.out.println("COMPRESS TIME: " + (be - bs) / 1000 + "s (" + (be - bs) + ")");
+        System.out.println("===================================\n");
+    }
+
+    /**
+     * Reference characters other than A, C, T, G and N can only be matched
+     * as N, unlike the input's, which the case mask keeps
+     */
+    private static void reportReplaced(PackedSequence ref) {
+        if (ref.replaced() > 0) {
+            System.err.println(ref.replaced() + " reference characters replaced with 'N'.");
+        }
+    }
+
+    private static void writeAll(LinkedList<Future<CompressionWriter>> pending, Sample sample)
+            throws Exception {
+        while (!pending.isEmpty()) {
+            sample.write(pending.removeFirst().get().chunks());
+        }
+    }
+
+    /**
+     * Compresses one block into its own writer, closing its last chunk unless
+     * it is the last block of the input
+     */
+    private static class BlockTask implements Callable<CompressionWriter> {
+
+        private final Compressor compressor;
+        private final CompressionWriter writer;
+        private final int readInput;
+        private final boolean last;
+        private final BlockingQueue<Compressor> idle;
+        private final BlockingQueue<PackedSequence[]> buffers;
+
+        BlockTask(Compressor compressor, CompressionWriter writer, int readInput, boolean last,
+                BlockingQueue<Compressor> idle) {
+            this(compressor, writer, readInput, last, idle, null);
+        }
+
+        /**
+         * @param buffers if not null, gets the reference and input buffers of
+         * compressor back once the block is compressed
+         */
+        BlockTask(Compressor compressor, CompressionWriter writer, int readInput, boolean last,
+                BlockingQueue<Compressor> idle, BlockingQueue<PackedSequence[]> buffers) {
+            this.compressor = compressor;
+            this.writer = writer;
+            this.readInput = readInput;
+            this.last = last;
+            this.idle = idle;
+            this.buffers = buffers;
+        }
+
+        @Override
+        public CompressionWriter call() throws Exception {
+            try {
+                compressBlock(compressor, writer, readInput);
+                if (!last) {
+                    writer.endChunk(readInput, false);
+                }
+            } finally {
+                if (buffers != null) {
+                    buffers.add(new PackedSequence[]{compressor.reference, compressor.input});
                 }
-            } while (!done);
+                idle.add(compressor);
+            }
+            return writer;
         }
+    }
 
-//        outputWriter.debug();
+    private static void decompress(File refFile, File inputFile, File outputFile, int effectiveSize, int maxDigits)
+            throws Exception {
 
-        outputWriter.writeTermination();
-        outputWriter.flush();
-        outputWriter.close();
+        long st, et;
 
-        if(commentWriter != null){
-            commentWriter.flush();
-            commentWriter.close();
+        st = System.currentTimeMillis();
+        if (ContainerReader.isContainer(inputFile)) {
+            ContainerReader container = new ContainerReader(inputFile);
+            KMER_SIZE = container.kmerSize;
+            Decompressor k1 = new Decompressor(container.blockSize, container.maxDigits);
+            k1.decompress(refFile, container, inputFile, outputFile);
+        } else {
+            Decompressor k1 = new Decompressor(effectiveSize, maxDigits);
+            k1.decompress(refFile, inputFile, outputFile);
         }
-        
         et = System.currentTimeMillis();
-        
-        System.out.println("INDEX & COMPRESS TIME: " + (et - st) / 1000 + "s (" + (et - st) + ")");
+        System.out.println("DECOMPRESS TIME: " + (et - st) / 1000 + "s (" + (et - st) + ")");
     }
 
-    private static void decompress(File refFile, File inputFile, File outputFile, int effectiveSize, int maxDigits)
+    /**
+     * Decompresses the bases in region, given as [NAME:]START-END, 1-based and
+     * inclusive; with NAME they are counted from the start of that FASTA record
+     */
+    private static void decompressRegion(File refFile, File inputFile, File outputFile, String region)
             throws Exception {
 
         long st, et;
 
-        Decompressor k1 = new Decompressor(effectiveSize, maxDigits);
+        if (!ContainerReader.isContainer(inputFile)) {
+            System.out.println(inputFile.getName() + " has no chunk index, use DECOMPRESS instead.\n");
+            return;
+        }
 
         st = System.currentTimeMillis();
-        k1.decompress(refFile, inputFile, outputFile);
+        ContainerReader container = new ContainerReader(inputFile);
+        long[] bounds = regionBounds(region, container);
+        if (bounds == null) {
+            container.close();
+            return;
+        }
+        KMER_SIZE = container.kmerSize;
+        Decompressor k1 = new Decompressor(container.blockSize, container.maxDigits);
+        k1.decompressRegion(refFile, container, outputFile, bounds[0], bounds[1]);
         et = System.currentTimeMillis();
         System.out.println("DECOMPRESS TIME: " + (et - st) / 1000 + "s (" + (et - st) + ")");
     }
 
+    /**
+     * Output positions [start, end) of region, or null once the reason it
+     * cannot be extracted has been printed
+     */
+    private static long[] regionBounds(String region, ContainerReader container) throws IOException {
+        List<Chunk> chunks = container.index();
+        Chunk last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        long offset = 0;
+        long total = last == null ? 0 : last.outputOffset + last.bases;
+
+        String range = region.replace(",", "");
+        int colon = range.lastIndexOf(':');
+        if (colon >= 0) {
+            String name = range.substring(0, colon);
+            long[] record = container.layout() == null ? null : container.layout().locate(name);
+            if (record == null) {
+                System.out.println("No FASTA record named " + name + " in the input. Program will exit.\n");
+                return null;
+            }
+            offset = record[0];
+            total = record[1];
+            range = range.substring(colon + 1);
+        }
+
+        long start, end;
+        try {
+            String[] split = range.split("-");
+            if (split.length != 2) {
+                throw new NumberFormatException();
+            }
+            start = Long.parseLong(split[0].trim());
+            end = Long.parseLong(split[1].trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Region " + region + " not recognized, expected [NAME:]START-END. Program will exit.\n");
+            return null;
+        }
+        if (start > end) {
+            System.out.println("Region " + region + " ends before it starts. Program will exit.\n");
+            return null;
+        }
+        if (start < 1 || end > total) {
+            System.out.println("Region " + region + " is not within 1-" + total + ". Program will exit.\n");
+            return null;
+        }
+        return new long[]{offset + start - 1, offset + end};
+    }
+
     private static void printUsage() {
-        System.out.println("\nKmerCompression TASK REFERENCE INPUT OUTPUT");
-        System.out.println("Where\n\tTASK is COMPRESS or DECOMPRESS;");
+        System.out.println("\nKmerCompression TASK REFERENCE INPUT OUTPUT [REGION]");
+        System.out.println("KmerCompression BUILD_INDEX REFERENCE INDEX");
+        System.out.println("KmerCompression COMPRESS_BATCH REFERENCE MANIFEST");
+        System.out.println("Where\n\tTASK is COMPRESS, DECOMPRESS or DECOMPRESS_REGION;");
         System.out.println("\tREFERENCE is the path to the reference file;");
-        System.out.println("\tINPUT is the path to the file to be compressed or decompressed;");
-        System.out.println("\tOUTPUT is the path to the output file.\n");
+        System.out.println("\tINPUT is the path to the file to be compressed or decompressed, or - for stdin;");
+        System.out.println("\tOUTPUT is the path to the output file, or - for stdout;");
+        System.out.println("\tREGION is [NAME:]START-END, the 1-based inclusive bases to extract with DECOMPRESS_REGION,");
+        System.out.println("\t\tcounted from the start of the FASTA record NAME if given;");
+        System.out.println("\tMANIFEST lists one INPUT OUTPUT pair per line, all compressed against REFERENCE.\n");
         System.out.println("Also, a config.ini is expected to be present, or these are the default values:");
         System.out.println("\tkmer_size=20");
         System.out.println("\tsearch_window=120");
         System.out.println("\tindex_window=200");
         System.out.println("\tdcmp_mem=1 - this value is in MB");
         System.out.println("\tblock_size=250 - this value is in MB");
+        System.out.println("\tthreads=1 - number of blocks compressed in parallel");
+        System.out.println("\tsegments=1 - number of threads sharing the compression of each block");
+        System.out.println("\tprefetch=true - read the next block while the current one is compressed");
+        System.out.println("\tbatch_group=128 - inputs of a COMPRESS_BATCH manifest compressed per pass over the reference");
+        System.out.println("\treference_cache=1024 - packed reference blocks kept for the passes after the first, in MB");
+        System.out.println("\tchunk_size=1 - input bases per independently decodable chunk, in MB");
+        System.out.println("\tcodec=deflate-6 - none, deflate-N (level 0 to 9), range or adaptive");
+        System.out.println("\treference_index - file written by BUILD_INDEX, used instead of indexing on demand");
+    }
+
+    static boolean isStream(File file) {
+        return file.getPath().equals(STREAM);
     }
 
     private static int numDigitsB(int num) {
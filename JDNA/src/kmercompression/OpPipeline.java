@@ -0,0 +1,146 @@
+package kmercompression;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Carries the output of the decoder to the thread that writes it, as
+ * operations: reference copies, literal runs and N fills. Operations are
+ * gathered in batches that cycle between the two threads, so they only wait
+ * on each other once per batch.
+ *
+ * Copyright (c) 2014, Fernando Alves <falves@lasige.di.fc.ul.pt>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+class OpPipeline {
+
+    static final byte COPY = 0;
+    static final byte LITERALS = 1;
+    static final byte FILL = 2;
+    static final byte POSITION = 3;
+    //
+    private static final int BATCHES = 4;
+    private static final int OPS = 1 << 12;
+    private static final int LITERAL_BYTES = 1 << 16;
+
+    /**
+     * Operations of a batch. COPY has the reference position in value
+     * and POSITION the output position, FILL is always N; lengths of LITERALS
+     * are taken in order from literals.
+     */
+    static class Batch {
+
+        final byte[] kinds = new byte[OPS];
+        final long[] values = new long[OPS];
+        final int[] lengths = new int[OPS];
+        final byte[] literals = new byte[LITERAL_BYTES];
+        int count;
+        int literalCount;
+        boolean last;
+
+        private void clear() {
+            count = 0;
+            literalCount = 0;
+            last = false;
+        }
+    }
+    //
+    private final BlockingQueue<Batch> full = new ArrayBlockingQueue<>(BATCHES);
+    private final BlockingQueue<Batch> empty = new ArrayBlockingQueue<>(BATCHES);
+    private Batch current;
+
+    OpPipeline() {
+        for (int i = 0; i < BATCHES - 1; i++) {
+            empty.add(new Batch());
+        }
+        current = new Batch();
+    }
+
+    void copy(long position, int length) throws InterruptedException {
+        add(COPY, position, length);
+    }
+
+    void literal(char c) throws InterruptedException {
+        if (current.literalCount == LITERAL_BYTES) {
+            handOff();
+        }
+        int last = current.count - 1;
+        if (last >= 0 && current.kinds[last] == LITERALS) {
+            current.lengths[last]++;
+        } else {
+            add(LITERALS, 0, 1);
+        }
+        current.literals[current.literalCount++] = (byte) c;
+    }
+
+    void fill(int count) throws InterruptedException {
+        add(FILL, 0, count);
+    }
+
+    /**
+     * Moves the output to position, where the next chunk decoded starts
+     */
+    void position(long position) throws InterruptedException {
+        add(POSITION, position, 0);
+    }
+
+    /**
+     * Hands off the last batch, ending the output
+     */
+    void close() throws InterruptedException {
+        current.last = true;
+        full.put(current);
+        current = null;
+    }
+
+    /**
+     * Waits for the next batch of operations, to be given back with
+     * recycle once written
+     */
+    Batch take() throws InterruptedException {
+        return full.take();
+    }
+
+    void recycle(Batch batch) {
+        batch.clear();
+        empty.add(batch);
+    }
+
+    private void add(byte kind, long value, int length) throws InterruptedException {
+        if (current.count == OPS) {
+            handOff();
+        }
+        int i = current.count++;
+        current.kinds[i] = kind;
+        current.values[i] = value;
+        current.lengths[i] = length;
+    }
+
+    private void handOff() throws InterruptedException {
+        full.put(current);
+        current = empty.take();
+    }
+}
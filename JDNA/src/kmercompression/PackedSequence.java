@@ -0,0 +1,329 @@
+package kmercompression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Nucleotide buffer holding 2 bits per A, C, T or G base. Any other character
+ * is stored as N, and N bases are kept as a sorted list of runs instead of in
+ * the packed words.
+ *
+ * Copyright (c) 2014, Fernando Alves <falves@lasige.di.fc.ul.pt>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+class PackedSequence {
+
+    static final int A = 0;
+    static final int C = 1;
+    static final int T = 2;
+    static final int G = 3;
+    //
+    private static final char[] BASES = {'A', 'C', 'T', 'G'};
+    private static final int LOWER = 4;
+    private static final byte[] CODES = new byte[128];
+    private static final int INITIAL_RUNS = 16;
+    private static final int READ_BUFFER = 64 * 1024;
+    //
+    final long[] words;
+    private final int capacity;
+    private int length;
+    //
+    private int[] nStarts;
+    private int[] nEnds;
+    private int nRuns;
+    private int replaced;
+    private int folded;
+    //where the input records what packing leaves out, and its position in the input
+    private BaseMask mask;
+    private long maskOffset;
+
+    static {
+        Arrays.fill(CODES, (byte) -1);
+        CODES['A'] = A;
+        CODES['C'] = C;
+        CODES['T'] = T;
+        CODES['G'] = G;
+        CODES['a'] = A | LOWER;
+        CODES['c'] = C | LOWER;
+        CODES['t'] = T | LOWER;
+        CODES['g'] = G | LOWER;
+    }
+
+    PackedSequence(int capacity) {
+        this.capacity = capacity;
+        //one spare word so that 64-bit reads never run past the array
+        words = new long[(capacity >>> 5) + 2];
+        nStarts = new int[INITIAL_RUNS];
+        nEnds = new int[INITIAL_RUNS];
+    }
+
+    void clear() {
+        if (length > 0) {
+            Arrays.fill(words, 0, Math.min(words.length, (length >>> 5) + 1), 0L);
+        }
+        length = 0;
+        nRuns = 0;
+        replaced = 0;
+        folded = 0;
+    }
+
+    /**
+     * Records lowercase bases and characters other than A, C, T, G and N in
+     * mask, the first base of this sequence being at offset in the input
+     */
+    void record(BaseMask mask, long offset) {
+        this.mask = mask;
+        maskOffset = offset;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Number of characters other than A, C, T, G, N or n stored as N, with no
+     * mask to record them, since the last clear
+     */
+    int replaced() {
+        return replaced;
+    }
+
+    /**
+     * Number of lowercase bases stored as uppercase, with no mask to record
+     * them, since the last clear
+     */
+    int folded() {
+        return folded;
+    }
+
+    void append(char c) {
+        int code = c < 128 ? CODES[c] : -1;
+        if ((code & ~3) == 0) {
+            words[length >>> 5] |= (long) code << ((length & 31) << 1);
+            length++;
+        } else {
+            appendOther(c, code);
+        }
+    }
+
+    /**
+     * Lowercase bases are stored as uppercase and anything else as N, the
+     * mask keeping what was there
+     */
+    private void appendOther(char c, int code) {
+        if (code >= LOWER) {
+            if (mask != null) {
+                mask.lower(maskOffset + length);
+            } else {
+                folded++;
+            }
+            words[length >>> 5] |= (long) (code - LOWER) << ((length & 31) << 1);
+            length++;
+            return;
+        }
+        if (c == 'n') {
+            if (mask != null) {
+                mask.lower(maskOffset + length);
+            }
+        } else if (c != 'N') {
+            if (mask != null) {
+                mask.exception(maskOffset + length, c);
+            } else {
+                replaced++;
+            }
+        }
+        appendN(1);
+    }
+
+    void append(char[] chars, int offset, int len) {
+        int max = offset + len;
+        for (int i = offset; i < max; i++) {
+            append(chars[i]);
+        }
+    }
+
+    void append(byte[] bytes, int offset, int len) {
+        int max = offset + len;
+        for (int i = offset; i < max; i++) {
+            append((char) (bytes[i] & 0xff));
+        }
+    }
+
+    void appendN(int count) {
+        if (nRuns > 0 && nEnds[nRuns - 1] == length) {
+            nEnds[nRuns - 1] += count;
+        } else {
+            if (nRuns == nStarts.length) {
+                nStarts = Arrays.copyOf(nStarts, nRuns * 2);
+                nEnds = Arrays.copyOf(nEnds, nRuns * 2);
+            }
+            nStarts[nRuns] = length;
+            nEnds[nRuns] = length + count;
+            nRuns++;
+        }
+        length += count;
+    }
+
+    /**
+     * Clears the buffer and fills it with up to max bases from in.
+     * @return the number of bases read, or -1 if the stream had already ended
+     */
+    int read(InputStream in, int max) throws IOException {
+        byte[] buffer = new byte[Math.min(READ_BUFFER, Math.max(max, 1))];
+        int read;
+
+        clear();
+        while (length < max && (read = in.read(buffer, 0, Math.min(buffer.length, max - length))) != -1) {
+            append(buffer, 0, read);
+        }
+        return length == 0 && max > 0 ? -1 : length;
+    }
+
+    /**
+     * Bytes save() writes for the current contents
+     */
+    int savedSize() {
+        return 16 + words(length) * 8 + nRuns * 8;
+    }
+
+    /**
+     * Writes the packed contents to out, to be put back by load
+     */
+    void save(ByteBuffer out) {
+        out.putInt(length).putInt(nRuns).putInt(replaced).putInt(folded);
+        int used = words(length);
+        out.asLongBuffer().put(words, 0, used);
+        out.position(out.position() + used * 8);
+        out.asIntBuffer().put(nStarts, 0, nRuns).put(nEnds, 0, nRuns);
+        out.position(out.position() + nRuns * 8);
+    }
+
+    /**
+     * Clears the buffer and fills it with contents written by save
+     */
+    void load(ByteBuffer in) throws IOException {
+        clear();
+        int saved = in.getInt();
+        int runs = in.getInt();
+        if (saved > capacity) {
+            throw new IOException("saved sequence of " + saved + " bases does not fit in " + capacity);
+        }
+        replaced = in.getInt();
+        folded = in.getInt();
+        int used = words(saved);
+        in.asLongBuffer().get(words, 0, used);
+        in.position(in.position() + used * 8);
+        if (runs > nStarts.length) {
+            nStarts = new int[runs];
+            nEnds = new int[runs];
+        }
+        in.asIntBuffer().get(nStarts, 0, runs).get(nEnds, 0, runs);
+        in.position(in.position() + runs * 8);
+        length = saved;
+        nRuns = runs;
+    }
+
+    private static int words(int length) {
+        return (length + 31) >>> 5;
+    }
+
+    /**
+     * 2-bit code of the base at pos; meaningless inside an N run
+     */
+    int code(int pos) {
+        return (int) (words[pos >>> 5] >>> ((pos & 31) << 1)) & 3;
+    }
+
+    /**
+     * The 32 bases starting at pos, the base at pos in the lowest 2 bits
+     */
+    long word(int pos) {
+        int index = pos >>> 5;
+        int shift = (pos & 31) << 1;
+        long low = words[index] >>> shift;
+        return shift == 0 ? low : low | (words[index + 1] << (64 - shift));
+    }
+
+    /**
+     * Number of leading bases, up to max, that are equal in this sequence from
+     * pos and in other from otherPos. Compares 32 bases per step; N runs are
+     * not checked, callers bound max with nextN().
+     */
+    int matchLength(int pos, PackedSequence other, int otherPos, int max) {
+        int len = 0;
+        long diff;
+
+        while (len < max) {
+            diff = word(pos + len) ^ other.word(otherPos + len);
+            if (diff != 0) {
+                len += Long.numberOfTrailingZeros(diff) >>> 1;
+                return len < max ? len : max;
+            }
+            len += 32;
+        }
+        return max;
+    }
+
+    char charAt(int pos) {
+        return isN(pos) ? 'N' : BASES[code(pos)];
+    }
+
+    boolean isN(int pos) {
+        int run = runAfter(pos);
+        return run < nRuns && nStarts[run] <= pos;
+    }
+
+    /**
+     * First N position at or after pos, or the sequence length if there is none
+     */
+    int nextN(int pos) {
+        int run = runAfter(pos);
+        return run < nRuns ? Math.max(nStarts[run], pos) : length;
+    }
+
+    /**
+     * End (exclusive) of the N run containing pos
+     */
+    int nRunEnd(int pos) {
+        return nEnds[runAfter(pos)];
+    }
+
+    //index of the first run ending after pos
+    private int runAfter(int pos) {
+        int low = 0, high = nRuns;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (nEnds[mid] <= pos) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,104 @@
+package kmercompression;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decoder for the output of RangeEncoder. It must be driven with the same
+ * models, in the same order, as the encoder was.
+ *
+ * Copyright (c) 2014, Fernando Alves <falves@lasige.di.fc.ul.pt>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+class RangeDecoder {
+
+    private final InputStream in;
+    private int range;
+    private int code;
+
+    RangeDecoder(InputStream in) throws IOException {
+        this.in = in;
+        range = -1;
+        code = 0;
+        for (int i = 0; i < 5; i++) {
+            code = (code << 8) | next();
+        }
+    }
+
+    int decodeBit(short[] probs, int index) throws IOException {
+        int prob = probs[index];
+        int bound = (range >>> RangeEncoder.PROBABILITY_BITS) * prob;
+        int bit;
+        //unsigned comparison
+        if ((code ^ 0x80000000) < (bound ^ 0x80000000)) {
+            range = bound;
+            probs[index] = (short) (prob + (((1 << RangeEncoder.PROBABILITY_BITS) - prob) >>> RangeEncoder.MOVE_BITS));
+            bit = 0;
+        } else {
+            code -= bound;
+            range -= bound;
+            probs[index] = (short) (prob - (prob >>> RangeEncoder.MOVE_BITS));
+            bit = 1;
+        }
+        if ((range & 0xFF000000) == 0) {
+            code = (code << 8) | next();
+            range <<= 8;
+        }
+        return bit;
+    }
+
+    int decodeTree(short[] probs, int offset, int bits) throws IOException {
+        int node = 1;
+        for (int i = 0; i < bits; i++) {
+            node = (node << 1) | decodeBit(probs, offset + node);
+        }
+        return node - (1 << bits);
+    }
+
+    int decodeDirect(int bits) throws IOException {
+        int value = 0;
+        for (int i = 0; i < bits; i++) {
+            range >>>= 1;
+            int t = (code - range) >>> 31;
+            code -= range & (t - 1);
+            value = (value << 1) | (1 - t);
+            if ((range & 0xFF000000) == 0) {
+                code = (code << 8) | next();
+                range <<= 8;
+            }
+        }
+        return value;
+    }
+
+    private int next() throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("range coded data ends early");
+        }
+        return b;
+    }
+}
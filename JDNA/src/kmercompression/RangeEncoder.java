@@ -0,0 +1,133 @@
+package kmercompression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Adaptive binary range encoder. Every bit is coded with a probability kept
+ * in a caller's short[] model, which is updated after each bit, so frequent
+ * symbols shrink to a fraction of a bit. Decoded by RangeDecoder.
+ *
+ * Copyright (c) 2014, Fernando Alves <falves@lasige.di.fc.ul.pt>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+class RangeEncoder {
+
+    static final int PROBABILITY_BITS = 11;
+    //probabilities start at one half
+    static final short INITIAL = 1 << (PROBABILITY_BITS - 1);
+    static final int MOVE_BITS = 5;
+    //
+    private final OutputStream out;
+    private long low;
+    private int range;
+    private int cache;
+    private long cacheSize;
+
+    RangeEncoder(OutputStream out) {
+        this.out = out;
+        low = 0;
+        range = -1;
+        cache = 0;
+        cacheSize = 1;
+    }
+
+    static short[] model(int size) {
+        short[] probs = new short[size];
+        Arrays.fill(probs, INITIAL);
+        return probs;
+    }
+
+    void encodeBit(short[] probs, int index, int bit) throws IOException {
+        int prob = probs[index];
+        int bound = (range >>> PROBABILITY_BITS) * prob;
+        if (bit == 0) {
+            range = bound;
+            probs[index] = (short) (prob + (((1 << PROBABILITY_BITS) - prob) >>> MOVE_BITS));
+        } else {
+            low += bound & 0xFFFFFFFFL;
+            range -= bound;
+            probs[index] = (short) (prob - (prob >>> MOVE_BITS));
+        }
+        while ((range & 0xFF000000) == 0) {
+            range <<= 8;
+            shiftLow();
+        }
+    }
+
+    /**
+     * Codes the lowest bits of value, most significant first, through a
+     * binary tree of 2^bits contexts starting at offset in probs
+     */
+    void encodeTree(short[] probs, int offset, int bits, int value) throws IOException {
+        int node = 1;
+        for (int i = bits - 1; i >= 0; i--) {
+            int bit = (value >>> i) & 1;
+            encodeBit(probs, offset + node, bit);
+            node = (node << 1) | bit;
+        }
+    }
+
+    /**
+     * Codes the lowest bits of value with fixed, even probabilities
+     */
+    void encodeDirect(int bits, int value) throws IOException {
+        for (int i = bits - 1; i >= 0; i--) {
+            range >>>= 1;
+            if (((value >>> i) & 1) != 0) {
+                low += range & 0xFFFFFFFFL;
+            }
+            if ((range & 0xFF000000) == 0) {
+                range <<= 8;
+                shiftLow();
+            }
+        }
+    }
+
+    /**
+     * Writes out the last bytes, the output stream is left open
+     */
+    void finish() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            shiftLow();
+        }
+    }
+
+    private void shiftLow() throws IOException {
+        if (low < 0xFF000000L || low > 0xFFFFFFFFL) {
+            int carry = (int) (low >>> 32);
+            int temp = cache;
+            do {
+                out.write((temp + carry) & 0xFF);
+                temp = 0xFF;
+            } while (--cacheSize != 0);
+            cache = (int) (low >>> 24) & 0xFF;
+        }
+        cacheSize++;
+        low = (low & 0x00FFFFFFL) << 8;
+    }
+}
@@ -0,0 +1,191 @@
+package kmercompression;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packed reference blocks kept off-heap between passes over the reference, so
+ * the COMPRESS_BATCH groups after the first read its blocks from memory
+ * instead of parsing the file again. Blocks are keyed by file, block size and
+ * block number, and evicted in CLOCK order once the cache holds more than its
+ * capacity.
+ *
+ * Copyright (c) 2014, Fernando Alves <falves@lasige.di.fc.ul.pt>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+class ReferenceCache {
+
+    private final long capacity;
+    private long size = 0;
+    private final Map<Key, Entry> entries = new HashMap<>();
+    //CLOCK ring, the hand pointing at the next entry to consider for eviction
+    private final List<Entry> ring = new ArrayList<>();
+    private int hand = 0;
+    private long hits = 0;
+
+    /**
+     * @param capacity bytes the cache may hold, 0 for none, which reads every
+     * block from the file
+     */
+    ReferenceCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Fills sequence with block number block of file, in blocks of blockSize
+     * bases, from the cache if it holds it
+     *
+     * @return bases in the block, or -1 if the file ends before it
+     */
+    int read(File file, int block, int blockSize, PackedSequence sequence) throws IOException {
+        Key key = null;
+        if (capacity > 0) {
+            key = new Key(file, blockSize, block);
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                entry.referenced = true;
+                hits++;
+                sequence.load(entry.block.duplicate());
+                return sequence.length();
+            }
+        }
+
+        int read;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position((long) block * blockSize);
+            read = sequence.read(in, blockSize);
+        } finally {
+            in.close();
+        }
+
+        if (key != null && read != -1) {
+            put(key, sequence);
+        }
+        return read;
+    }
+
+    /**
+     * Blocks read from the cache so far
+     */
+    long hits() {
+        return hits;
+    }
+
+    private void put(Key key, PackedSequence sequence) {
+        int bytes = sequence.savedSize();
+        if (bytes > capacity || entries.containsKey(key)) {
+            return;
+        }
+        evict(bytes);
+
+        Entry entry = new Entry(key, ByteBuffer.allocateDirect(bytes));
+        sequence.save(entry.block);
+        entry.block.flip();
+        entries.put(key, entry);
+        ring.add(entry);
+        size += bytes;
+    }
+
+    /**
+     * Evicts entries until bytes more fit in the capacity. An entry used
+     * since the hand last passed it gets another round.
+     */
+    private void evict(long bytes) {
+        while (size + bytes > capacity && !ring.isEmpty()) {
+            if (hand >= ring.size()) {
+                hand = 0;
+            }
+            Entry entry = ring.get(hand);
+            if (entry.referenced) {
+                entry.referenced = false;
+                hand++;
+            } else {
+                ring.remove(hand);
+                entries.remove(entry.key);
+                size -= entry.block.capacity();
+            }
+        }
+    }
+
+    private static class Entry {
+
+        final Key key;
+        final ByteBuffer block;
+        boolean referenced = false;
+
+        Entry(Key key, ByteBuffer block) {
+            this.key = key;
+            this.block = block;
+        }
+    }
+
+    /**
+     * A block of a file as it was when read; a file changed since then gets
+     * new keys
+     */
+    private static class Key {
+
+        private final String path;
+        private final long length;
+        private final long modified;
+        private final int blockSize;
+        private final int block;
+
+        Key(File file, int blockSize, int block) throws IOException {
+            path = file.getCanonicalPath();
+            length = file.length();
+            modified = file.lastModified();
+            this.blockSize = blockSize;
+            this.block = block;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return path.equals(other.path) && length == other.length && modified == other.modified
+                    && blockSize == other.blockSize && block == other.block;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = path.hashCode();
+            hash = 31 * hash + (int) (length ^ (length >>> 32));
+            hash = 31 * hash + (int) (modified ^ (modified >>> 32));
+            hash = 31 * hash + blockSize;
+            return 31 * hash + block;
+        }
+    }
+}
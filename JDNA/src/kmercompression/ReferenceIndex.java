@@ -0,0 +1,232 @@
+package kmercompression;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * K-mer index of a whole reference, built once by the BUILD_INDEX task and
+ * memory mapped by every compression against that reference. Each block of
+ * the reference has its own table: the positions of its k-mers grouped by a
+ * hash of the k-mer, ascending within a group. Entries of a group may belong
+ * to other k-mers with the same hash, so callers still compare the bases.
+ *
+ * Copyright (c) 2014, Fernando Alves <falves@lasige.di.fc.ul.pt>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+class ReferenceIndex {
+
+    private static final int MAGIC = 0x4A445849; //JDXI
+    private static final int VERSION = 2;
+    private static final int HEADER = 36;
+    private static final int ENTRY = 16;
+    private static final int MAX_BITS = 28;
+    //
+    final int kmerSize;
+    final int blockSize;
+    //length and modification time of the reference it was built from
+    private final long referenceLength;
+    private final long referenceModified;
+    private final RandomAccessFile file;
+    private final Block[] blocks;
+
+    /**
+     * Positions of the k-mers of one reference block
+     */
+    static class Block {
+
+        private final int bits;
+        private final IntBuffer starts;
+        private final IntBuffer positions;
+
+        private Block(int bits, IntBuffer starts, IntBuffer positions) {
+            this.bits = bits;
+            this.starts = starts;
+            this.positions = positions;
+        }
+
+        int group(long key) {
+            return hash(key, bits);
+        }
+
+        /**
+         * First entry of group
+         */
+        int start(int group) {
+            return starts.get(group);
+        }
+
+        /**
+         * Entry after the last one of group
+         */
+        int end(int group) {
+            return starts.get(group + 1);
+        }
+
+        int position(int entry) {
+            return positions.get(entry);
+        }
+    }
+
+    ReferenceIndex(File index) throws IOException {
+        file = new RandomAccessFile(index, "r");
+        FileChannel channel = file.getChannel();
+
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+        if (header.getInt() != MAGIC) {
+            throw new IOException(index.getName() + " is not a reference index");
+        }
+        if (header.getInt() != VERSION) {
+            throw new IOException(index.getName() + " was built by another version, run BUILD_INDEX again");
+        }
+        kmerSize = header.getInt();
+        blockSize = header.getInt();
+        blocks = new Block[header.getInt()];
+        referenceLength = header.getLong();
+        referenceModified = header.getLong();
+
+        ByteBuffer entries = channel.map(FileChannel.MapMode.READ_ONLY, HEADER, (long) blocks.length * ENTRY);
+        for (int i = 0; i < blocks.length; i++) {
+            long offset = entries.getLong();
+            int bits = entries.getInt();
+            int count = entries.getInt();
+            long startsSize = ((1L << bits) + 1) * 4;
+            blocks[i] = new Block(bits,
+                    channel.map(FileChannel.MapMode.READ_ONLY, offset, startsSize).asIntBuffer(),
+                    channel.map(FileChannel.MapMode.READ_ONLY, offset + startsSize, (long) count * 4).asIntBuffer());
+        }
+    }
+
+    /**
+     * Returns true if this index was built from reference as it is now, split
+     * every effectiveSize bases, with k-mers of kmerSize
+     */
+    boolean fits(File reference, int effectiveSize, int kmer) {
+        if (kmer != kmerSize || reference.length() != referenceLength
+                || reference.lastModified() != referenceModified) {
+            return false;
+        }
+        if (blocks.length <= 1) {
+            return referenceLength <= effectiveSize;
+        }
+        return blockSize == effectiveSize;
+    }
+
+    Block block(int block) {
+        return block < blocks.length ? blocks[block] : null;
+    }
+
+    void close() throws IOException {
+        file.close();
+    }
+
+    static int hash(long key, int bits) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - bits));
+    }
+
+    /**
+     * Indexes reference in blocks of blockSize bases into index
+     */
+    static void build(File reference, File index, int kmerSize, int blockSize) throws IOException {
+        long length = reference.length();
+        int count = (int) Math.max(1, (length + blockSize - 1) / blockSize);
+
+        RandomAccessFile out = new RandomAccessFile(index, "rw");
+        out.setLength(0);
+        FileChannel channel = out.getChannel();
+        InputStream in = new BufferedInputStream(new FileInputStream(reference), JDNA.ONEMB);
+
+        ByteBuffer entries = ByteBuffer.allocate(HEADER + count * ENTRY);
+        entries.putInt(MAGIC);
+        entries.putInt(VERSION);
+        entries.putInt(kmerSize);
+        entries.putInt(blockSize);
+        entries.putInt(count);
+        entries.putLong(length);
+        entries.putLong(reference.lastModified());
+
+        PackedSequence sequence = new PackedSequence((int) Math.min(length, blockSize));
+        RollingHash hash = new RollingHash(kmerSize);
+        long offset = HEADER + count * ENTRY;
+
+        for (int b = 0; b < count; b++) {
+            int read = Math.max(0, sequence.read(in, blockSize));
+            int last = read - kmerSize;
+            //four to eight positions per group, a binary search finds inpPos in them
+            int bits = Math.min(MAX_BITS, Math.max(1, 29 - Integer.numberOfLeadingZeros(Math.max(1, read))));
+            int[] starts = new int[(1 << bits) + 1];
+
+            //count the entries of each group, then turn counts into starts
+            hash.reset(sequence);
+            int entryCount = 0;
+            for (int i = hash.skip(0); i < last; i = hash.skip(i + 1)) {
+                long key = hash.hash(i);
+                if (key != RollingHash.NO_HASH) {
+                    starts[hash(key, bits) + 1]++;
+                    entryCount++;
+                }
+            }
+            for (int g = 0; g < starts.length - 1; g++) {
+                starts[g + 1] += starts[g];
+            }
+
+            long startsSize = (long) starts.length * 4;
+            MappedByteBuffer startsMap = channel.map(FileChannel.MapMode.READ_WRITE, offset, startsSize);
+            startsMap.asIntBuffer().put(starts);
+            MappedByteBuffer positionsMap = channel.map(FileChannel.MapMode.READ_WRITE, offset + startsSize,
+                    (long) entryCount * 4);
+            IntBuffer positions = positionsMap.asIntBuffer();
+
+            //fill the groups in ascending position order, starts becomes the fill cursor
+            hash.reset(sequence);
+            for (int i = hash.skip(0); i < last; i = hash.skip(i + 1)) {
+                long key = hash.hash(i);
+                if (key != RollingHash.NO_HASH) {
+                    positions.put(starts[hash(key, bits)]++, i);
+                }
+            }
+            startsMap.force();
+            positionsMap.force();
+
+            entries.putLong(offset);
+            entries.putInt(bits);
+            entries.putInt(entryCount);
+            offset += startsSize + (long) entryCount * 4;
+        }
+        in.close();
+
+        entries.flip();
+        channel.write(entries, 0);
+        out.close();
+    }
+}
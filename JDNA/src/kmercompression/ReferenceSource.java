@@ -0,0 +1,81 @@
+package kmercompression;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only view of a reference file mapped in memory. References over 2 GB
+ * are mapped in several pieces, since a single map is indexed by int.
+ *
+ * Copyright (c) 2014, Fernando Alves <falves@lasige.di.fc.ul.pt>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+class ReferenceSource {
+
+    private static final int MAP_SIZE = 1 << 30;
+    //
+    private final MappedByteBuffer[] maps;
+    private final long length;
+
+    ReferenceSource(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            length = channel.size();
+            maps = new MappedByteBuffer[(int) ((length + MAP_SIZE - 1) / MAP_SIZE)];
+            for (int i = 0; i < maps.length; i++) {
+                long start = (long) i * MAP_SIZE;
+                maps[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_SIZE, length - start));
+            }
+        } finally {
+            //the maps stay valid after the channel is closed
+            in.close();
+        }
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * Returns the bases from position on, up to len of them. The view ends
+     * early where one map ends, so callers loop until they have all they need.
+     */
+    ByteBuffer slice(long position, int len) throws IOException {
+        if (position < 0 || position >= length) {
+            throw new IOException("reference ends before position " + position);
+        }
+        ByteBuffer map = maps[(int) (position / MAP_SIZE)].duplicate();
+        int offset = (int) (position % MAP_SIZE);
+        map.position(offset);
+        map.limit(offset + Math.min(len, map.capacity() - offset));
+        return map;
+    }
+}
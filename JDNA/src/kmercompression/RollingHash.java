@@ -0,0 +1,120 @@
+package kmercompression;
+
+/**
+ * Rolling 2-bit k-mer hash. Moving the k-mer one position forward costs a
+ * single shift, so sequential walks over a sequence hash in O(1) per position.
+ * K-mers containing a base other than A, C, T or G have no hash.
+ *
+ * Copyright (c) 2014, Fernando Alves <falves@lasige.di.fc.ul.pt>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+class RollingHash {
+
+    static final long NO_HASH = -1;
+    //
+    private final int kmerSize;
+    private final long mask;
+    //
+    private PackedSequence sequence;
+    private int position;
+    private long value;
+    private int lastN;
+    private int nextN;
+    //no N in [gapFrom, gapEnd), see skip
+    private int gapFrom;
+    private int gapEnd;
+
+    RollingHash(int k) {
+        kmerSize = k;
+        //at most the last 31 bases are kept, so no k-mer hashes to NO_HASH;
+        //equals() in the compressor checks longer k-mers in full
+        mask = (1L << (2 * Math.min(k, 31))) - 1;
+        reset(null);
+    }
+
+    void reset(PackedSequence seq) {
+        sequence = seq;
+        position = -1;
+        value = 0;
+        lastN = -1;
+        nextN = -1;
+        gapFrom = 0;
+        gapEnd = 0;
+    }
+
+    /**
+     * First position at or after pos whose k-mer has no N, or one past the
+     * last k-mer if there is none. Each N run is jumped over in one step, so
+     * walks over a sequence skip its gaps without hashing every position.
+     */
+    int skip(int pos) {
+        if (pos < gapFrom || pos + kmerSize > gapEnd) {
+            int n = sequence.nextN(pos);
+            while (n < pos + kmerSize && n < sequence.length()) {
+                pos = sequence.nRunEnd(n);
+                n = sequence.nextN(pos);
+            }
+            gapFrom = pos;
+            gapEnd = n;
+        }
+        return pos;
+    }
+
+    /**
+     * Returns the hash of the k-mer starting at pos, or NO_HASH if it contains
+     * a base other than A, C, T or G
+     */
+    long hash(int pos) {
+        int from;
+        if (position >= 0 && pos >= position && pos - position < kmerSize) {
+            //roll forward over the bases that entered the window
+            from = position + kmerSize;
+        } else {
+            value = 0;
+            lastN = -1;
+            nextN = -1;
+            from = pos;
+        }
+
+        int to = pos + kmerSize;
+        for (int i = from; i < to; i++) {
+            if (i >= nextN) {
+                nextN = sequence.nextN(i);
+                if (nextN == i) {
+                    //the whole run only has to be remembered by its last base
+                    i = Math.min(sequence.nRunEnd(i), to) - 1;
+                    lastN = i;
+                    value = 0;
+                    continue;
+                }
+            }
+            value = ((value << 2) | sequence.code(i)) & mask;
+        }
+        position = pos;
+
+        return lastN >= pos ? NO_HASH : value;
+    }
+}
@@ -0,0 +1,181 @@
+package kmercompression;
+
+import java.io.*;
+import java.util.List;
+
+/**
+ * One input being compressed: its reader, the container it is written to and
+ * how far into it the compression went. Keeping this apart from the reference
+ * lets COMPRESS_BATCH feed several inputs from each reference block.
+ *
+ * Copyright (c) 2014, Fernando Alves <falves@lasige.di.fc.ul.pt>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+class Sample {
+
+    final File inputFile;
+    private final InputStream inputStream;
+    private final ContainerWriter container;
+    final int blockSize;
+    private final int maxDigits;
+    //FASTA inputs only
+    private FastaReader fastaReader = null;
+    //lowercase and IUPAC bases packing leaves out
+    private final BaseMask mask = new BaseMask();
+    //
+    private int blockNumber = 0;
+    private long inputOffset = 0;
+    boolean inputDone = false;
+
+    /**
+     * @param inputFile input, or JDNA.STREAM to read it from stdin. Files named
+     * .fasta and streams starting with > are read as FASTA.
+     * @param outputFile output, or JDNA.STREAM to write it to stdout
+     */
+    Sample(File inputFile, File outputFile, int blockSize, int maxDigits) throws IOException {
+        this(inputFile, outputFile, blockSize, maxDigits, JDNA.ONEMB);
+    }
+
+    /**
+     * @param bufferSize size of the input and output buffers
+     */
+    Sample(File inputFile, File outputFile, int blockSize, int maxDigits, int bufferSize) throws IOException {
+        this.inputFile = inputFile;
+        this.blockSize = blockSize;
+        this.maxDigits = maxDigits;
+
+        boolean streamed = JDNA.isStream(inputFile);
+        inputStream = new BufferedInputStream(streamed ? System.in : new FileInputStream(inputFile), bufferSize);
+
+        boolean fasta;
+        if (streamed) {
+            inputStream.mark(1);
+            fasta = inputStream.read() == '>';
+            inputStream.reset();
+        } else {
+            String name = inputFile.getName();
+            int index = name.lastIndexOf(".");
+            fasta = index != -1 && index != 0 && name.substring(index+1).equals("fasta");
+        }
+        if (fasta) {
+            fastaReader = new FastaReader(inputStream, bufferSize);
+        }
+
+        container = new ContainerWriter(JDNA.isStream(outputFile) ? JDNA.STDOUT : new FileOutputStream(outputFile),
+                JDNA.KMER_SIZE, blockSize, maxDigits, JDNA.CODEC, bufferSize);
+    }
+
+    /**
+     * Reads the next block of the input into input, setting inputDone when it
+     * is the last one
+     *
+     * @return bases read, or -1 if the input ended with the previous block
+     */
+    int read(PackedSequence input) throws IOException {
+        int readInput = read(input, blockSize);
+
+        if (readInput != blockSize) {
+            inputDone = true;
+        }
+        return readInput > 0 ? readInput : -1;
+    }
+
+    private int read(PackedSequence input, int max) throws IOException {
+        input.record(mask, inputOffset);
+        return fastaReader == null ? input.read(inputStream, max) : fastaReader.read(input, max);
+    }
+
+    /**
+     * Writer for the block just read
+     */
+    CompressionWriter writer(int readInput) {
+        CompressionWriter writer = new CompressionWriter(maxDigits, blockNumber, inputOffset);
+        blockNumber++;
+        inputOffset += readInput;
+        return writer;
+    }
+
+    /**
+     * Marks the reference as having had lowercase bases, which decompression
+     * has to restore to uppercase where the input copies them
+     */
+    void referenceFolded() {
+        mask.referenceFolded = true;
+    }
+
+    void write(List<Chunk> chunks) throws IOException {
+        container.write(chunks);
+    }
+
+    /**
+     * Writes the input left over when the reference ends into literal chunks
+     * and closes the container
+     *
+     * @param outputWriter writer of the last block, still open, or null
+     * @param outputEnd input bases of the last block
+     * @param input buffer to read the rest of the input into
+     */
+    void finish(CompressionWriter outputWriter, int outputEnd, PackedSequence input) throws IOException {
+        int readInput;
+        boolean done;
+
+        if (outputWriter == null) {
+            outputWriter = new CompressionWriter(maxDigits, blockNumber, inputOffset);
+            outputWriter.startChunk(0, 0);
+            outputEnd = 0;
+        }
+        if (!inputDone) {
+            done = false;
+            do {
+                readInput = read(input, blockSize);
+                if (readInput == -1) {
+                    done = true;
+                } else {
+                    if (outputEnd > 0) {
+                        outputWriter.endChunk(outputEnd, false);
+                        container.write(outputWriter.chunks());
+                        outputWriter = new CompressionWriter(maxDigits, blockNumber, inputOffset);
+                        outputWriter.startChunk(0, 0);
+                    }
+                    for (int i = 0; i < readInput; i++) {
+                        outputWriter.writeChar(input.charAt(i));
+                    }
+                    outputEnd = readInput;
+                    inputOffset += readInput;
+                    if (readInput != blockSize) {
+                        done = true;
+                    }
+                }
+            } while (!done);
+            inputDone = true;
+        }
+
+        outputWriter.endChunk(outputEnd, true);
+        container.write(outputWriter.chunks());
+        container.close(fastaReader == null ? null : fastaReader.layout(), mask);
+        inputStream.close();
+    }
+}
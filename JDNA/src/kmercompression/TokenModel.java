@@ -0,0 +1,189 @@
+package kmercompression;
+
+import java.io.IOException;
+
+/**
+ * Adaptive models for coding the token stream of a chunk with a range coder,
+ * the alternative to the fixed bit codes of CompressionWriter. Literals are
+ * predicted from the literal before them, the SNP flag from the literals
+ * before the match, and the length selector from the index adjustment.
+ * The buckets of the fixed codes are kept; their selectors are modelled and
+ * small payloads too.
+ *
+ * Copyright (c) 2014, Fernando Alves <falves@lasige.di.fc.ul.pt>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+class TokenModel {
+
+    //literal symbols besides the base codes 0 to 4 (A, C, T, G, N)
+    static final int N = 4;
+    static final int END = 5;
+    static final int CHANGE = 6;
+    static final int TERMINATION = 7;
+    //payloads up to this size are modelled, longer ones are coded evenly
+    private static final int MODELLED_BITS = 7;
+    private static final int[] ADJUST_BASE = {0, 0, 2, 10, 18, 34, 290, 0};
+    //largest index adjustment and match length, past KMER_SIZE, of each selector but the last
+    private static final int[] ADJUST_LIMIT = {-128, 0, 9, 17, 33, 289, 801};
+    private static final int[] LENGTH_LIMIT = {15, 47, 111, 239, 495, 1007, 2031};
+    //
+    private final int[] adjustBits;
+    private final int[] lengthBits;
+    private final int[] lengthBase;
+    private final int maxBits;
+    private final int kmerSize;
+    //
+    private final short[] literals = RangeEncoder.model(8 * 8);
+    private final short[] nRun = RangeEncoder.model(1);
+    private final short[] snp = RangeEncoder.model(3 * 2);
+    private final short[] adjustSelector = RangeEncoder.model(2 * 8);
+    private final short[] adjustPayload = RangeEncoder.model(8 << MODELLED_BITS);
+    private final short[] lengthSelector = RangeEncoder.model(9 * 8);
+    private final short[] lengthPayload = RangeEncoder.model(8 << MODELLED_BITS);
+    //
+    private int previous;
+    private int literalCount;
+    private int previousSnp;
+    private int adjustKind;
+    //run length of the last N decoded, 0 for a single N
+    int run;
+
+    TokenModel(int maxBits, int kmerSize) {
+        this.maxBits = maxBits;
+        this.kmerSize = kmerSize;
+        adjustBits = new int[]{maxBits, 7, 3, 3, 4, 8, 9, maxBits};
+        lengthBits = new int[]{4, 5, 6, 7, 8, 9, 10, maxBits};
+        lengthBase = new int[]{kmerSize, kmerSize + 16, kmerSize + 48, kmerSize + 112, kmerSize + 240,
+            kmerSize + 496, kmerSize + 1008, 0};
+    }
+
+    /**
+     * @param run for N, the run length or 0 for a single N
+     */
+    void encodeLiteral(RangeEncoder rc, int symbol, int run) throws IOException {
+        rc.encodeTree(literals, previous << 3, 3, symbol);
+        if (symbol == N) {
+            if (run == 0) {
+                rc.encodeBit(nRun, 0, 0);
+            } else {
+                rc.encodeBit(nRun, 0, 1);
+                rc.encodeDirect(maxBits, run);
+            }
+        }
+        literal(symbol);
+    }
+
+    int decodeLiteral(RangeDecoder rc) throws IOException {
+        int symbol = rc.decodeTree(literals, previous << 3, 3);
+        if (symbol == N) {
+            run = rc.decodeBit(nRun, 0) == 0 ? 0 : rc.decodeDirect(maxBits);
+        }
+        literal(symbol);
+        return symbol;
+    }
+
+    private void literal(int symbol) {
+        previous = symbol;
+        if (symbol < END) {
+            literalCount++;
+        }
+    }
+
+    void encodeMatch(RangeEncoder rc, int difference, int length) throws IOException {
+        int context = Math.min(literalCount, 2) * 2 + previousSnp;
+        if (difference == 1) {
+            rc.encodeBit(snp, context, 0);
+            adjustKind = 0;
+        } else {
+            rc.encodeBit(snp, context, 1);
+            int selector = 0;
+            while (selector < 7 && difference > ADJUST_LIMIT[selector]) {
+                selector++;
+            }
+            rc.encodeTree(adjustSelector, previousSnp << 3, 3, selector);
+            encodePayload(rc, adjustPayload, selector, adjustBits[selector],
+                    (selector < 2 ? -difference : difference) - ADJUST_BASE[selector]);
+            adjustKind = selector + 1;
+        }
+
+        int selector = 0;
+        while (selector < 7 && length - kmerSize > LENGTH_LIMIT[selector]) {
+            selector++;
+        }
+        rc.encodeTree(lengthSelector, adjustKind << 3, 3, selector);
+        encodePayload(rc, lengthPayload, selector, lengthBits[selector], length - lengthBase[selector]);
+        matched(difference);
+    }
+
+    /**
+     * Decodes the index adjustment of a match, call decodeLength next
+     */
+    int decodeAdjustment(RangeDecoder rc) throws IOException {
+        int context = Math.min(literalCount, 2) * 2 + previousSnp;
+        int difference;
+        if (rc.decodeBit(snp, context) == 0) {
+            difference = 1;
+            adjustKind = 0;
+        } else {
+            int selector = rc.decodeTree(adjustSelector, previousSnp << 3, 3);
+            difference = decodePayload(rc, adjustPayload, selector, adjustBits[selector]) + ADJUST_BASE[selector];
+            if (selector < 2) {
+                difference = -difference;
+            }
+            adjustKind = selector + 1;
+        }
+        return difference;
+    }
+
+    int decodeLength(RangeDecoder rc, int difference) throws IOException {
+        int selector = rc.decodeTree(lengthSelector, adjustKind << 3, 3);
+        int length = decodePayload(rc, lengthPayload, selector, lengthBits[selector]) + lengthBase[selector];
+        matched(difference);
+        return length;
+    }
+
+    private void matched(int difference) {
+        previousSnp = difference == 1 ? 1 : 0;
+        literalCount = 0;
+        previous = END;
+    }
+
+    private void encodePayload(RangeEncoder rc, short[] probs, int selector, int bits, int value)
+            throws IOException {
+        if (bits <= MODELLED_BITS) {
+            rc.encodeTree(probs, selector << MODELLED_BITS, bits, value);
+        } else {
+            rc.encodeDirect(bits, value);
+        }
+    }
+
+    private int decodePayload(RangeDecoder rc, short[] probs, int selector, int bits) throws IOException {
+        if (bits <= MODELLED_BITS) {
+            return rc.decodeTree(probs, selector << MODELLED_BITS, bits);
+        }
+        return rc.decodeDirect(bits);
+    }
+}